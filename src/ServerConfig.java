@@ -49,6 +49,16 @@ public interface ServerConfig
             { type = t; from = frm; text=txt; time=tm; ttl = tt; }
     }
         
+   /**
+    * Result of posting a message. Number of clients it was delivered to and 
+    * number of messages that were dropped because of full outgoing queues. 
+    */
+    public class Delivery {
+        public int delivered;
+        public int dropped;
+    }
+    
+    
     /** Interface to publish-subscribe service (based on websocket) */
     public interface PubSub {
         /** Post a message to a room (text is prefixed with the room name) */
@@ -60,6 +70,29 @@ public interface ServerConfig
         /** Post a object to a room owned by a user (JSON encoded) */
         public void put(String rid, Object obj, String userid);
         
+        /* 
+         * The deliver methods have defaults so that existing implementations still compile. 
+         * The defaults post the message and return zero counts. 
+         */
+        
+        /** As putText, but return the number of receivers and dropped messages */
+        public default Delivery deliverText (String rid, String msg) {
+            putText(rid, msg);
+            return new Delivery();
+        }
+        
+        /** As put, but return the number of receivers and dropped messages */
+        public default Delivery deliver(String rid, Object obj) {
+            put(rid, obj);
+            return new Delivery();
+        }
+        
+        /** As put, but return the number of receivers and dropped messages */
+        public default Delivery deliver(String rid, Object obj, String userid) {
+            put(rid, obj, userid);
+            return new Delivery();
+        }
+        
         /** Create a room */
         public void createRoom(String name, Class cl); 
         
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+
+
+
+/**
+ * Decimation of position updates for one subscriber. For each object (identified by
+ * a key), it remembers the position and time of the last update that was sent.
+ * A new update is let through only if the object has moved at least minDist meters
+ * and at least minInterval ms has passed. A limit of 0 is not checked. The first
+ * update for an object is always let through.
+ *
+ * The last update of an object that was not let through is kept as pending. If no
+ * newer update of the object comes within max(minInterval, 1 s), it is returned by
+ * due(), so that the subscriber gets the final position of an object that stops.
+ */
+
+public class Decimator {
+
+    /* Max number of objects to remember. The least recently updated are forgotten */
+    private static final int MAX_OBJECTS = 10000;
+
+    /* Min time (ms) a pending update waits for a newer one before it is due */
+    private static final long MIN_WAIT = 1000;
+
+    private static class Last {
+        double lat, lon;
+        long time;
+        WsFrame pending;
+        long pendingTime;
+    }
+
+    private final double _minDist;
+    private final long _minInterval;
+    private long _nSkipped = 0;
+
+    private final Map<String, Last> _last = new LinkedHashMap<String, Last>(64, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Last> e)
+            { return size() > MAX_OBJECTS; }
+    };
+
+    /* Objects that have a pending update */
+    private final Map<String, Last> _pending = new HashMap<String, Last>();
+
+
+
+    /**
+     * @param minDist Min distance (meters) an object must move.
+     * @param minInterval Min time (ms) between updates of an object.
+     */
+    public Decimator(double minDist, long minInterval) {
+        _minDist = minDist;
+        _minInterval = minInterval;
+    }
+
+
+
+    /**
+     * Return true if an update (a frame with a key and a position) is to be let through.
+     * If so, call sent() when it is queued for the subscriber. If not, it replaces the
+     * pending update of the object.
+     */
+    public synchronized boolean pass(WsFrame f) {
+        long now = System.currentTimeMillis();
+        Last l = _last.get(f.key());
+        if (l != null &&
+              ((_minInterval > 0 && now - l.time < _minInterval) ||
+               (_minDist > 0 && distance(l.lat, l.lon, f.lat(), f.lon()) < _minDist))) {
+            _nSkipped++;
+            l.pending = f;
+            l.pendingTime = now;
+            _pending.put(f.key(), l);
+            return false;
+        }
+        Last p = _pending.remove(f.key());
+        if (p != null)
+            p.pending = null;
+        return true;
+    }
+
+
+
+    /** Remember an update as the last one sent. Later updates are compared with it */
+    public synchronized void sent(WsFrame f) {
+        Last l = _last.get(f.key());
+        if (l == null) {
+            l = new Last();
+            _last.put(f.key(), l);
+        }
+        l.lat = f.lat();
+        l.lon = f.lon();
+        l.time = System.currentTimeMillis();
+    }
+
+
+
+    /**
+     * Remove and return the pending updates that have waited long enough for a newer one.
+     * Call sent() for those that are queued for the subscriber.
+     */
+    public synchronized List<WsFrame> due() {
+        if (_pending.isEmpty())
+            return List.of();
+        long now = System.currentTimeMillis();
+        long wait = Math.max(_minInterval, MIN_WAIT);
+        List<WsFrame> res = new ArrayList<WsFrame>();
+        Iterator<Last> it = _pending.values().iterator();
+        while (it.hasNext()) {
+            Last l = it.next();
+            if (now - l.pendingTime >= wait) {
+                res.add(l.pending);
+                l.pending = null;
+                it.remove();
+            }
+        }
+        return res;
+    }
+
+
+
+    /** Number of updates that were not let through */
+    public synchronized long nSkipped()
+        { return _nSkipped; }
+
+
+
+    /* Approximate distance (meters) between two positions. Good enough for short distances */
+    private static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double dy = (lat2 - lat1) * 111320;
+        double dlon = Math.abs(lon2 - lon1);
+        if (dlon > 180)
+            dlon = 360 - dlon;
+        double dx = dlon * 111320 * Math.cos(Math.toRadians((lat1 + lat2) / 2));
+        return Math.sqrt(dx*dx + dy*dy);
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import no.polaric.core.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.*;
+import java.util.List;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.Decorator;
+import org.eclipse.jetty.websocket.core.*;
+import org.eclipse.jetty.websocket.core.exception.*;
+import org.eclipse.jetty.websocket.core.server.WebSocketServerComponents;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.http.HttpServletRequest;
+
+
+
+/**
+ * Websocket permessage-deflate extension (RFC 7692) with some more control than the one
+ * in Jetty: Messages smaller than a given size are not compressed, and messages can be
+ * marked as not to be compressed (see WsFrame). The compression level and context takeover
+ * can be configured. It counts the number of bytes before and after compression, so that
+ * the effect can be measured.
+ *
+ * Each session has its own Deflater and Inflater. Java's Deflater always uses a window 
+ * of 15 bits, so offers that limit the server's window to less than that are declined 
+ * (see declineOffers). client_max_window_bits is not answered, the client may use any
+ * window size.
+ *
+ * It replaces the default permessage-deflate extension when installed.
+ * Configuration properties:
+ *   websocket.deflate                 - false to turn off compression (default true)
+ *   websocket.deflate.minsize         - messages smaller than this (bytes) are not compressed (default 0)
+ *   websocket.deflate.level           - compression level 0-9 (default -1, use Deflater's default)
+ *   websocket.deflate.contexttakeover - false to reset compression context for each message (default true)
+ */
+
+public class DeflateExtension extends AbstractExtension {
+
+    public static final String NAME = "permessage-deflate";
+
+    /* Empty stored block that ends a flushed deflate stream. Not sent on the wire. */
+    private static final byte[] TAIL = {0x00, 0x00, (byte) 0xFF, (byte) 0xFF};
+
+
+    /** Frame that is not to be compressed. */
+    public static class Plain extends Frame {
+        public Plain(byte opcode, ByteBuffer payload)
+            { super(opcode, payload); }
+    }
+
+
+
+    /**
+     * Settings and statistics. Shared by the extension instances of a server. 
+     */
+    public static class Settings {
+        public final int minSize;
+        public final int level;
+        public final boolean ctxTakeover;
+
+        private final LongAdder _rawBytes = new LongAdder();
+        private final LongAdder _wireBytes = new LongAdder();
+        private final LongAdder _nPlain = new LongAdder();
+
+        public Settings(int minsize, int lvl, boolean ctx)
+            { minSize = minsize; level = lvl; ctxTakeover = ctx; }
+
+        /** Number of payload bytes of outgoing messages, before compression */
+        public long rawBytes()
+            { return _rawBytes.sum(); }
+
+        /** Number of payload bytes of outgoing messages, after compression */
+        public long wireBytes()
+            { return _wireBytes.sum(); }
+
+        /** Number of outgoing messages that were not compressed */
+        public long nPlain()
+            { return _nPlain.sum(); }
+    }
+
+
+
+    /**
+     * Install the extension in the websocket server of a servlet context, or turn
+     * off compression, depending on the configuration. Return the settings, or null 
+     * if compression is turned off or could not be installed. 
+     * Must be called after the server is started.
+     */
+    public static Settings install(ServerConfig conf, ServletContext sctx) {
+        WebSocketComponents comp = WebSocketServerComponents.getWebSocketComponents(sctx);
+        if (comp == null) {
+            conf.log().warn("DeflateExtension", "Websocket components not found");
+            return null;
+        }
+        if (!conf.getBoolProperty("websocket.deflate", true)) {
+            conf.log().info("DeflateExtension", "Websocket compression is turned off");
+            comp.getExtensionRegistry().unregister(NAME);
+            return null;
+        }
+        Settings s = new Settings(
+            conf.getIntProperty("websocket.deflate.minsize", 0),
+            conf.getIntProperty("websocket.deflate.level", Deflater.DEFAULT_COMPRESSION),
+            conf.getBoolProperty("websocket.deflate.contexttakeover", true) );
+        
+        /* 
+         * Instances are created by Jetty's object factory. A decorator gives them
+         * the settings of this server. 
+         */
+        comp.getObjectFactory().addDecorator(new Decorator() {
+            public <T> T decorate(T o) {
+                if (o instanceof DeflateExtension x)
+                    x._settings = s;
+                return o;
+            }
+            public void destroy(Object o) {}
+        });
+        comp.getExtensionRegistry().register(NAME, DeflateExtension.class);
+        return s;
+    }
+
+
+
+    /**
+     * Remove the permessage-deflate offers that cannot be accepted from the 
+     * Sec-WebSocket-Extensions header of an upgrade request (RFC 7692, 7.1.2.1). If the 
+     * client offers no other permessage-deflate configuration, compression is not used. 
+     * Must be called before the upgrade, e.g. in wsBeforeUpgrade.
+     */
+    public static void declineOffers(HttpServletRequest req) {
+        Request base = Request.getBaseRequest(req);
+        if (base == null)
+            return;
+        HttpFields fields = base.getHttpFields();
+        List<String> values = fields.getValuesList(HttpHeader.SEC_WEBSOCKET_EXTENSIONS);
+        if (values.isEmpty())
+            return;
+        List<ExtensionConfig> offers = ExtensionConfig.parseList(values.toArray(new String[0]));
+        List<ExtensionConfig> accepted = offers.stream()
+            .filter(c -> !NAME.equalsIgnoreCase(c.getName()) || serverWindowBits(c) == 15)
+            .toList();
+        if (accepted.size() == offers.size())
+            return;
+        HttpFields.Mutable f = HttpFields.build(fields);
+        f.remove(HttpHeader.SEC_WEBSOCKET_EXTENSIONS);
+        if (!accepted.isEmpty())
+            f.put(HttpHeader.SEC_WEBSOCKET_EXTENSIONS, ExtensionConfig.toHeaderValue(accepted));
+        base.setHttpFields(f);
+    }
+
+
+
+    /* server_max_window_bits of an offer. 15 if not given, -1 if not valid */
+    private static int serverWindowBits(ExtensionConfig c) {
+        try {
+            return c.getParameter("server_max_window_bits", 15);
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+
+
+    private Settings _settings = new Settings(0, Deflater.DEFAULT_COMPRESSION, true);
+    private Deflater _deflater;
+    private Inflater _inflater;
+    private boolean _outReset, _inReset;   // Reset context after each message
+    private boolean _outPlain;             // Outgoing messages are not compressed
+    private boolean _outCompressed;        // Current outgoing message is compressed
+    private boolean _inCompressed;         // Current incoming message is compressed
+    private long _inSize;                  // Inflated size of current incoming message
+    private boolean _closed;
+
+
+
+    public DeflateExtension()
+        { super(); }
+
+
+    /** Create an extension with the given settings (not installed in a server). */
+    public DeflateExtension(Settings s)
+        { _settings = s; }
+
+
+    public Settings settings()
+        { return _settings; }
+
+
+
+    /**
+     * Negotiate. Context takeover parameters of the offer are accepted. The server 
+     * resets its context for each message if the client asks for it or if it is 
+     * configured to do so. server_max_window_bits is answered with the same value. Offers 
+     * where it is less than 15 should have been declined (see declineOffers). If not, 
+     * outgoing messages are not compressed, so the window is never larger than the 
+     * client allows.
+     */
+    @Override public void init(ExtensionConfig offer, WebSocketComponents components) {
+        ExtensionConfig config = new ExtensionConfig(offer.getName());
+        for (String p : offer.getParameterKeys()) {
+            if ("client_no_context_takeover".equals(p)) {
+                config.setParameter(p);
+                _inReset = true;
+            }
+            else if ("server_no_context_takeover".equals(p))
+                _outReset = true;
+            else if ("server_max_window_bits".equals(p)) {
+                int bits = serverWindowBits(offer);
+                config.setParameter(p, Math.max(bits, 8));
+                _outPlain = (bits < 15);
+            }
+        }
+        if (!_settings.ctxTakeover)
+            _outReset = true;
+        if (_outReset)
+            config.setParameter("server_no_context_takeover");
+        super.init(config, components);
+        _deflater = new Deflater(_settings.level, true);
+        _inflater = new Inflater(true);
+    }
+
+
+
+    /** The RSV1 bit marks compressed messages */
+    @Override public boolean isRsv1User()
+        { return true; }
+
+
+
+    /**
+     * Compress outgoing data frames, except whole messages that are small or 
+     * marked as plain. The RSV1 bit is set on the first frame of compressed messages.
+     */
+    @Override public synchronized void sendFrame(Frame frame, Callback callback, boolean batch) {
+        if (!frame.isDataFrame()) {
+            nextOutgoingFrame(frame, callback, batch);
+            return;
+        }
+        if (_closed) {
+            callback.failed(new IllegalStateException("Extension closed"));
+            return;
+        }
+        boolean first = (frame.getOpCode() != OpCode.CONTINUATION);
+        if (first) {
+            _outCompressed = !(_outPlain || frame instanceof Plain 
+                || (frame.isFin() && frame.getPayloadLength() < _settings.minSize));
+            if (!_outCompressed)
+                _settings._nPlain.increment();
+        }
+        _settings._rawBytes.add(frame.getPayloadLength());
+        if (_outCompressed) {
+            Frame out = new Frame(frame.getOpCode(), frame.isFin(), deflate(frame.getPayload(), frame.isFin()));
+            out.setRsv1(first);
+            frame = out;
+        }
+        _settings._wireBytes.add(frame.getPayloadLength());
+        
+        /* Frames are passed on while holding the lock, so that they are sent in the order they are compressed */
+        nextOutgoingFrame(frame, callback, batch);
+    }
+
+
+
+    /**
+     * Decompress incoming data frames of messages that have the RSV1 bit set
+     * on the first frame.
+     */
+    @Override public void onFrame(Frame frame, Callback callback) {
+        if (!frame.isDataFrame()) {
+            nextIncomingFrame(frame, callback);
+            return;
+        }
+        ByteBuffer data;
+        synchronized(this) {
+            if (frame.getOpCode() != OpCode.CONTINUATION) {
+                _inCompressed = frame.isRsv1();
+                _inSize = 0;
+            }
+            if (!_inCompressed)
+                data = null;
+            else if (_closed) {
+                callback.failed(new IllegalStateException("Extension closed"));
+                return;
+            }
+            else try {
+                long max = (frame.getOpCode() == OpCode.BINARY 
+                    ? getConfiguration().getMaxBinaryMessageSize() : getConfiguration().getMaxTextMessageSize());
+                data = inflate(frame.getPayload(), frame.isFin(), max);
+            }
+            catch (DataFormatException e) {
+                callback.failed(new BadPayloadException(e));
+                return;
+            }
+            catch (MessageTooLargeException e) {
+                callback.failed(e);
+                return;
+            }
+        }
+        /* The application gets the frame outside of the lock, it may block */
+        nextIncomingFrame(data == null ? frame : new Frame(frame.getOpCode(), frame.isFin(), data), callback);
+    }
+
+
+
+    /** Compress a frame payload. The tail is removed from the last frame of a message */
+    private ByteBuffer deflate(ByteBuffer payload, boolean fin) {
+        int n = (payload == null ? 0 : payload.remaining());
+        _deflater.setInput(n == 0 ? ByteBuffer.allocate(0) : payload.slice());
+        byte[] buf = new byte[Math.max(64, n / 2 + 16)];
+        int len = 0;
+        
+        /* With SYNC_FLUSH all output is written when there is space left in buf */
+        while (true) {
+            len += _deflater.deflate(buf, len, buf.length - len, Deflater.SYNC_FLUSH);
+            if (len < buf.length)
+                break;
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        if (fin) {
+            len -= TAIL.length;
+            if (_outReset)
+                _deflater.reset();
+        }
+        return ByteBuffer.wrap(buf, 0, len);
+    }
+
+
+
+    /** Decompress a frame payload. The tail is added to the last frame of a message */
+    private ByteBuffer inflate(ByteBuffer payload, boolean fin, long max) 
+            throws DataFormatException 
+    {
+        int n = (payload == null ? 0 : payload.remaining());
+        byte[] in = new byte[n + (fin ? TAIL.length : 0)];
+        if (n > 0)
+            payload.slice().get(in, 0, n);
+        if (fin)
+            System.arraycopy(TAIL, 0, in, n, TAIL.length);
+        _inflater.setInput(in);
+        
+        byte[] buf = new byte[Math.max(64, in.length * 4)];
+        int len = 0;
+        while (true) {
+            if (len == buf.length)
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            int k = _inflater.inflate(buf, len, buf.length - len);
+            len += k;
+            if (max > 0 && _inSize + len > max)
+                throw new MessageTooLargeException("Inflated message is larger than "+max+" bytes");
+            if (k == 0 && (_inflater.needsInput() || _inflater.finished() || _inflater.needsDictionary()))
+                break;
+        }
+        _inSize += len;
+        if (_inflater.finished() || (fin && _inReset))
+            _inflater.reset();
+        return ByteBuffer.wrap(buf, 0, len);
+    }
+
+
+
+    @Override public synchronized void close() {
+        _closed = true;
+        if (_deflater != null)
+            _deflater.end();
+        if (_inflater != null)
+            _inflater.end();
+    }
+
+}
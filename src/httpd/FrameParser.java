@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+
+
+
+/**
+ * Parser for commands in websocket text frames. The grammar is:
+ *
+ *   frame  := command [ SEP param ]
+ *   param  := field [ SEP body ]
+ *
+ * where SEP is ',' (PubSub) or ' ' (NodeWs). The param is everything after the first
+ * separator. For commands with two arguments (e.g. PUT,room,message), the field is
+ * the part of the param before the next separator and the body is the rest.
+ *
+ *   SUBSCRIBE | SUB      SEP room-or-nodeid
+ *   UNSUBSCRIBE | UNSUB  SEP room-or-nodeid
+ *   PUT                  SEP room SEP message
+ *   POST | MSG           SEP message
+ *   BATCH                [ SEP window [ SEP max ] ]
+ *   VIEW                 SEP room [ SEP minlat SEP minlon SEP maxlat SEP maxlon ]
+ *   RES                  SEP room [ SEP min-distance [ SEP min-interval ] ]
+ *   RESUME               [ SEP token ]
+ *   ACK                  SEP room SEP seq
+ *   PING
+ *
+ * The frame is tokenized in place by keeping offsets, so parsing does not allocate.
+ * Strings are only created for the parts the caller asks for. A parser is reused
+ * for the frames of a client and is not thread-safe.
+ */
+
+public class FrameParser {
+
+    public enum Command { SUBSCRIBE, UNSUBSCRIBE, PUT, POST, BATCH, VIEW, RES, RESUME, ACK, PING, UNKNOWN }
+
+    /* Command names and aliases */
+    private static final String[] NAMES =
+        { "SUBSCRIBE", "SUB", "UNSUBSCRIBE", "UNSUB", "PUT", "POST", "MSG", "BATCH", "VIEW", "RES",
+          "RESUME", "ACK", "PING" };
+    private static final Command[] COMMANDS =
+        { Command.SUBSCRIBE, Command.SUBSCRIBE, Command.UNSUBSCRIBE, Command.UNSUBSCRIBE,
+          Command.PUT, Command.POST, Command.POST, Command.BATCH, Command.VIEW, Command.RES,
+          Command.RESUME, Command.ACK, Command.PING };
+
+    private final char _sep;
+    private String _text;
+    private Command _cmd;
+    private int _cmdEnd;      // End of command
+    private int _fieldEnd;    // End of field (position of second separator, or end of text)
+
+
+
+    public FrameParser(char sep)
+        { _sep = sep; }
+
+
+
+    /** Parse a frame. Return the command */
+    public Command parse(String text) {
+        _text = text;
+        int n = text.length();
+        int i = text.indexOf(_sep);
+        _cmdEnd = (i < 0 ? n : i);
+        _fieldEnd = n;
+        if (i >= 0) {
+            int j = text.indexOf(_sep, i+1);
+            if (j >= 0)
+                _fieldEnd = j;
+        }
+        _cmd = Command.UNKNOWN;
+        for (int k=0; k<NAMES.length; k++)
+            if (NAMES[k].length() == _cmdEnd && text.regionMatches(0, NAMES[k], 0, _cmdEnd)) {
+                _cmd = COMMANDS[k];
+                break;
+            }
+        return _cmd;
+    }
+
+
+    /** The command of the last parsed frame */
+    public Command command()
+        { return _cmd; }
+
+
+    /** Return true if the frame has a param */
+    public boolean hasParam()
+        { return _cmdEnd < _text.length(); }
+
+
+    /** Return true if the param has a body (after the field) */
+    public boolean hasBody()
+        { return _fieldEnd < _text.length(); }
+
+
+    /** Everything after the command. null if none */
+    public String param()
+        { return (hasParam() ? _text.substring(_cmdEnd+1) : null); }
+
+
+    /** The first field of the param. null if none */
+    public String field()
+        { return (hasParam() ? _text.substring(_cmdEnd+1, _fieldEnd) : null); }
+
+
+    /** The rest of the param after the field. null if none */
+    public String body()
+        { return (hasBody() ? _text.substring(_fieldEnd+1) : null); }
+
+}
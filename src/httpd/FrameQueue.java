@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+
+
+
+/**
+ * Outgoing queue of a client with priority classes (see WsFrame.priority). There is one
+ * FIFO queue per class. They are served by weighted round robin: In each round, class i
+ * may send up to weight[i] frames. Higher classes are served first, but a lower class
+ * always gets its share when it has frames waiting, so it is not starved.
+ * Control frames (see WsFrame.control) are never chosen to be dropped.
+ * Not thread-safe. The caller must synchronize.
+ */
+
+public class FrameQueue {
+
+    private final ArrayDeque<WsFrame>[] _q;
+    private final int[] _weight;
+    private final int[] _credit;
+    private int _size = 0;
+
+
+
+    /**
+     * @param weights Weight of each priority class, highest priority first. At least 1.
+     */
+    public FrameQueue(int[] weights) {
+        @SuppressWarnings("unchecked")
+        ArrayDeque<WsFrame>[] q = (ArrayDeque<WsFrame>[]) new ArrayDeque<?>[weights.length];
+        _q = q;
+        _weight = new int[weights.length];
+        _credit = new int[weights.length];
+        for (int i=0; i<weights.length; i++) {
+            _q[i] = new ArrayDeque<WsFrame>();
+            _weight[i] = _credit[i] = Math.max(weights[i], 1);
+        }
+    }
+
+
+
+    /* Priority class of a frame */
+    private int cls(WsFrame f)
+        { return Math.max(0, Math.min(f.priority(), _q.length-1)); }
+
+
+    /*
+     * Class to be served next: The highest class that has frames and credit left.
+     * If all classes with frames have used their credit, the highest one with frames
+     * (a new round starts). -1 if empty.
+     */
+    private int select() {
+        int first = -1;
+        for (int i=0; i<_q.length; i++)
+            if (!_q[i].isEmpty()) {
+                if (_credit[i] > 0)
+                    return i;
+                if (first < 0)
+                    first = i;
+            }
+        return first;
+    }
+
+
+
+    public void add(WsFrame f) {
+        _q[cls(f)].add(f);
+        _size++;
+    }
+
+
+    /** Remove and return the next frame to be sent. null if empty */
+    public WsFrame poll() {
+        int i = select();
+        if (i < 0)
+            return null;
+        if (_credit[i] <= 0)
+            System.arraycopy(_weight, 0, _credit, 0, _weight.length);
+        _credit[i]--;
+        _size--;
+        return _q[i].poll();
+    }
+
+
+    /** Return the next frame to be sent without removing it. null if empty */
+    public WsFrame peek() {
+        int i = select();
+        return (i < 0 ? null : _q[i].peek());
+    }
+
+
+    /** Highest priority class that has frames waiting. -1 if empty */
+    public int highest() {
+        for (int i=0; i<_q.length; i++)
+            if (!_q[i].isEmpty())
+                return i;
+        return -1;
+    }
+
+
+    /* Oldest frame in class i that may be dropped (not a control frame). null if none */
+    private WsFrame droppable(int i) {
+        for (WsFrame f : _q[i])
+            if (!f.isControl())
+                return f;
+        return null;
+    }
+
+
+    /** Lowest priority class that has frames that may be dropped. -1 if none */
+    public int lowest() {
+        for (int i=_q.length-1; i>=0; i--)
+            if (droppable(i) != null)
+                return i;
+        return -1;
+    }
+
+
+    /** 
+     * Remove and return the oldest frame of the lowest class that has frames that may 
+     * be dropped. Control frames are skipped. null if there is no such frame. 
+     */
+    public WsFrame pollLowest() {
+        int i = lowest();
+        if (i < 0)
+            return null;
+        WsFrame f = droppable(i);
+        _q[i].removeFirstOccurrence(f);
+        _size--;
+        return f;
+    }
+
+
+    public int size()
+        { return _size; }
+
+
+    public boolean isEmpty()
+        { return _size == 0; }
+
+
+    public void clear() {
+        for (ArrayDeque<WsFrame> q : _q)
+            q.clear();
+        _size = 0;
+    }
+}
@@ -43,41 +43,41 @@ public class NodeWs extends WsNotifier
         }
              
         public String nodeid;
+        
+        /* Parser for incoming text frames */
+        private final FrameParser _parser = new FrameParser(' ');
       
 
       
       
-        @Override synchronized public void handleTextFrame(String text) {
-            String[] parms = text.split(" ", 2);
-            if (parms.length < 2) {
+        @Override public void handleTextFrame(String text) {
+            FrameParser.Command cmd = _parser.parse(text);
+            if (!_parser.hasParam()) {
                 _conf.log().warn("NodeWs", "Format error in message");
                 close();
             }
             else
-            switch (parms[0]) {
+            switch (cmd) {
                 /* subscribe: 
                  * arguments: ident
                  */
-                case "SUBSCRIBE":
-                case "SUB":
-                    nodeid = parms[1];
-                    _subscribers.put(parms[1], this);
+                case SUBSCRIBE:
+                    nodeid = _parser.param();
+                    _subscribers.put(nodeid, this);
                     break;
                    
                  /* unsubscribe:
                  * arguments: ident
                  */
-                case "UNSUBSCRIBE":
-                case "UNSUB":
-                    _subscribers.remove(parms[1]);
+                case UNSUBSCRIBE:
+                    _subscribers.remove(_parser.param());
                     break;
                     
                 /* post
                  * arguments: JSON-encoded content
                  */
-                case "POST": 
-                case "MSG":
-                    if (_handler != null) _handler.recv(nodeid, parms[1]);
+                case POST: 
+                    if (_handler != null) _handler.recv(nodeid, _parser.param());
                     break;
             
                 default: 
@@ -87,7 +87,7 @@ public class NodeWs extends WsNotifier
     }
    
    
-    private HashMap<String, Client> _subscribers = new HashMap<String,Client>(); 
+    private Map<String, Client> _subscribers = new ConcurrentHashMap<String,Client>(); 
     
             
         
@@ -61,6 +61,13 @@ public class NodeWsApi<T> {
     
     
     
+    /** Id of this node */
+    public String nodeId() {
+        return _nodeid;
+    }
+    
+    
+    
     public List<String> getNodes() {
         List<String> list = new ArrayList<String>();
         for (String x : _servers.keySet())
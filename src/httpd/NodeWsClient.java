@@ -45,6 +45,7 @@ public class NodeWsClient implements WebSocket.Listener {
     private boolean _retry = false;
     private long _retr_int = 0;
     private Timer hb = new Timer();
+    private FrameParser _parser = new FrameParser(' ');
     
     
     public NodeWsClient(ServerConfig conf, String nodeid, String url, boolean retry) {
@@ -207,13 +208,13 @@ public class NodeWsClient implements WebSocket.Listener {
     public CompletionStage<?> onText​(WebSocket webSocket, CharSequence data, boolean last) {
         _conf.log().debug("NodeWsClient", "Received message: "+_nodeid);
         if (_handler != null) {
-            String[] parms = data.toString().split(" ", 2);
-            if (parms.length < 2) { 
-                if (parms.length == 0 || !parms[0].equals("PING"))
+            FrameParser.Command cmd = _parser.parse(data.toString());
+            if (!_parser.hasParam()) { 
+                if (cmd != FrameParser.Command.PING)
                     _conf.log().warn("NodeWsClient", "Format error in message");
             }
-            else if (parms[0].equals("POST")) {
-                _handler.recv(_nodeid, parms[1]);
+            else if (cmd == FrameParser.Command.POST) {
+                _handler.recv(_nodeid, _parser.param());
             }
         }
         _retr_int = 0;
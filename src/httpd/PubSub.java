@@ -19,12 +19,16 @@ package no.polaric.core.httpd;
 import no.polaric.core.*;
 import no.polaric.core.auth.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.IOException;
 import java.net.*;
 import java.util.function.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import io.javalin.websocket.*; 
+import com.fasterxml.jackson.databind.JsonNode;
 
 
 
@@ -32,10 +36,22 @@ import io.javalin.websocket.*;
  * Generic publish/subscribe service using websocket. 
  * Ciients first connect to the websocket. The following commands are then available: 
  *   SUBSCRIBE,room     - subscribe to a room (get messages posted to that room)
+ *                        The room may be a pattern with wildcards, e.g. 'notify:*' (see TopicTrie)
  *   UNSUBSCRIBE,room   - unsubscribe
  *   PUT,room,message  - post a message to a room - only subscribers are allowed to post. 
+ *   BATCH,window[,max] - tell that client accepts batches of messages (see doc/pubsub.md)
+ *   VIEW,room[,minlat,minlon,maxlat,maxlon] - only get messages about positions inside 
+ *                        the box. Without the box, get all messages of the room. 
+ *   RES,room[,meters[,ms]] - decimate position updates of each object (see doc/pubsub.md)
+ *   RESUME[,token]     - get sequence numbers on messages, and resume the subscriptions 
+ *                        of an earlier session after a reconnect (see doc/pubsub.md)
+ *   ACK,room,seq       - acknowledge the messages of a room up to seq
+ *
+ * Clients that connect with the subprotocol 'polaric-bin' use a binary protocol 
+ * where rooms are identified by numbers and objects are CBOR encoded (see doc/pubsub.md). 
  *
  * A room must be created on the server side before being subscribed to (see createRoom methods)
+ * Rooms may be bridged to other server nodes (see PubSubBridge).
  */
  
 public class PubSub extends WsNotifier implements ServerConfig.PubSub
@@ -43,39 +59,213 @@ public class PubSub extends WsNotifier implements ServerConfig.PubSub
 
     public class Client extends WsNotifier.Client
     {   
+        /* Rooms subscribed to. Used to remove the client from them when session is closed */
+        protected Set<Room> _joined = ConcurrentHashMap.newKeySet();
+        
+        /* Decimation of position updates, for each room. See setResolution */
+        protected Map<Room, Decimator> _decim = new ConcurrentHashMap<Room, Decimator>();
+        
+        /* Wildcard patterns subscribed to */
+        protected Set<String> _patterns = ConcurrentHashMap.newKeySet();
+        
+        /* Rooms that a binary client has got the id of, through a pattern subscription */
+        protected Set<Integer> _knownRooms = ConcurrentHashMap.newKeySet();
+        
+        /* 
+         * View and decimation in rooms that the client gets messages from through a pattern. 
+         * For subscribers of a room, the view is kept by the room and decimation in _decim. 
+         */
+        protected Map<Room, SpatialGrid.Box> _wcViews = new ConcurrentHashMap<Room, SpatialGrid.Box>();
+        protected Map<Room, Decimator> _wcDecim = new ConcurrentHashMap<Room, Decimator>();
+        
+        /* Parser for incoming text frames */
+        private final FrameParser _parser = new FrameParser(',');
+        
+        /* Limits on the rate of PUT and SUBSCRIBE commands from the client. null means no limit */
+        private final TokenBucket _putLimit, _subLimit;
+        
+        /* Resume state, if the client has sent the RESUME command */
+        protected volatile Resume _resume;
+        
         public Client(WsContext ctx) { 
             super(ctx); 
+            _putLimit = TokenBucket.fromConfig(_conf, "pubsub.limit.put", 0, 20);
+            _subLimit = TokenBucket.fromConfig(_conf, "pubsub.limit.subscribe", 0, 50);
+        }
+        
+        
+        /* 
+         * Return true if the client may subscribe now. If not, count it as rejected 
+         * and tell the client (REJECTED,SUBSCRIBE,room). 
+         */
+        private boolean allowSubscribe(String rid) 
+            { return allowCommand("SUBSCRIBE", rid); }
+        
+        
+        /* 
+         * Return true if the client may resume now. RESUME shares the limit of SUBSCRIBE, 
+         * since it may subscribe to many rooms at once. 
+         */
+        private boolean allowResume() 
+            { return allowCommand("RESUME", null); }
+        
+        
+        /* 
+         * Take a token from the subscribe limit, or reject the command (REJECTED,cmd[,arg]). 
+         * A rejection that is waiting to be sent already is not queued again. 
+         */
+        private boolean allowCommand(String cmd, String arg) {
+            if (_subLimit == null || _subLimit.tryAcquire())
+                return true;
+            _nRejected.increment();
+            _conf.log().debug("PubSub", "Client "+sesId(_ctx)+" - "+cmd+" rejected, rate limit: "+arg);
+            sendControl("REJECTED,"+cmd + (arg == null ? "" : ","+arg), true);
+            return false;
+        }
+        
+        
+        /* 
+         * Return true if the client may post to the room now. Both the limit of the 
+         * client and the limit of the room apply, and a token is only taken if both 
+         * allow it. If not, count it as rejected and tell the client (REJECTED,PUT,room). 
+         */
+        private boolean allowPut(Room rm) {
+            if (_putLimit == null || _putLimit.tryAcquire()) {
+                if (rm.putLimit == null || rm.putLimit.tryAcquire())
+                    return true;
+                if (_putLimit != null)
+                    _putLimit.refund();
+            }
+            _nRejected.increment();
+            rm.stats.reject();
+            _conf.log().debug("PubSub", "Client "+sesId(_ctx)+" - PUT rejected, rate limit: "+rm.name);
+            sendControl("REJECTED,PUT,"+rm.name, true);
+            return false;
         }
              
        
-        @Override synchronized public void handleTextFrame(String text) {
+        @Override public void handleTextFrame(String text) {
             _conf.log().debug("PubSub", "Client "+sesId(_ctx)+", userid="+userName()+" : " + text);
-            String[] parms = text.split(",", 2);
-            switch (parms[0]) {
+            FrameParser.Command cmd = _parser.parse(text);
+            if (cmd != FrameParser.Command.BATCH && cmd != FrameParser.Command.RESUME && !_parser.hasParam()) 
+                return;
+            switch (cmd) {
                 /* subscribe, room */
-                case "SUBSCRIBE": 
-                    subscribe(this, parms[1]);
+                case SUBSCRIBE: 
+                    if (allowSubscribe(_parser.param()))
+                        subscribe(this, _parser.param());
                     break;
                    
                 /* unsubscribe, room */   
-                case "UNSUBSCRIBE": 
-                    unsubscribe(this, parms[1]);
+                case UNSUBSCRIBE: 
+                    unsubscribe(this, _parser.param());
                     break;
                     
                 /* post, room, message */
-                case "PUT": 
-                    String[] arg = parms[1].split(",", 2);
+                case PUT: 
+                    if (!_parser.hasBody())
+                        break;
+                    String rid = _parser.field();
                     
                     /* Only subscribers are allowed to post */
-                    Room rm = _rooms.get(arg[0]);
-                    if (rm != null && rm.canPost(this) && rm.hasClient(this))
-                        putText(arg[0], arg[1]);
+                    Room rm = _rooms.get(rid);
+                    if (rm != null && rm.canPost(this) && rm.hasClient(this) && allowPut(rm))
+                        putText(rid, _parser.body());
+                    break;
+                    
+                /* view, room, minlat, minlon, maxlat, maxlon */
+                case VIEW: 
+                    setView(this, _parser.field(), _parser.body());
+                    break;
+                    
+                /* resolution, room, min-distance, min-interval */
+                case RES: 
+                    setResolution(this, _parser.field(), _parser.body());
+                    break;
+                    
+                /* resume, token */
+                case RESUME: 
+                    if (allowResume())
+                        resume(this, _parser.param());
+                    break;
+                    
+                /* ack, room, seq */
+                case ACK: 
+                    ack(this, _parser.field(), _parser.body());
+                    break;
+                    
+                /* batch, window, maxsize */
+                case BATCH: 
+                    PubSub.this.setBatching(this, _parser.hasParam() ? _parser.param() : "0");
                     break;
             
                 default: 
                     break;
             }
         }
+        
+        
+        @Override public void handleBinaryFrame(byte[] data, int offset, int len) {
+            if (len < 1) 
+                return;
+            ByteBuffer b = ByteBuffer.wrap(data, offset, len);
+            byte type = b.get();
+            switch (type) {
+                /* subscribe, room */
+                case WsFrame.BIN_SUBSCRIBE: 
+                    String srid = StandardCharsets.UTF_8.decode(b).toString();
+                    if (allowSubscribe(srid))
+                        subscribe(this, srid);
+                    break;
+                    
+                /* unsubscribe, room */
+                case WsFrame.BIN_UNSUBSCRIBE: 
+                    unsubscribe(this, StandardCharsets.UTF_8.decode(b).toString());
+                    break;
+                    
+                /* put, room-id, CBOR encoded object */
+                case WsFrame.BIN_PUT: 
+                    Room rm = _roomsById.get(WsFrame.getVarint(b));
+                    
+                    /* Only subscribers are allowed to post */
+                    if (rm != null && rm.canPost(this) && rm.hasClient(this) && allowPut(rm)) {
+                        /* Decode to the class of the room, like the bridge does, so keyOf gets the same kind of object */
+                        Object obj = (rm.msgClass == null ? deserializeCbor(data, b.position(), b.remaining())
+                            : deserializeCbor(data, b.position(), b.remaining(), rm.msgClass));
+                        if (obj != null)
+                            put(rm.name, obj);
+                    }
+                    break;
+                    
+                /* view, room-id, [minlat, minlon, maxlat, maxlon] */
+                case WsFrame.BIN_VIEW: 
+                    Room vrm = _roomsById.get(WsFrame.getVarint(b));
+                    if (vrm == null)
+                        break;
+                    SpatialGrid.Box box = null;
+                    if (b.remaining() >= 32)
+                        box = new SpatialGrid.Box(b.getDouble(), b.getDouble(), b.getDouble(), b.getDouble());
+                    setView(this, vrm, box);
+                    break;
+                    
+                /* resolution, room-id, [min-distance, min-interval] */
+                case WsFrame.BIN_RES: 
+                    Room rrm = _roomsById.get(WsFrame.getVarint(b));
+                    if (rrm == null)
+                        break;
+                    Decimator d = null;
+                    if (b.remaining() >= 8) {
+                        double dist = b.getDouble();
+                        int ival = (b.hasRemaining() ? WsFrame.getVarint(b) : 0);
+                        d = new Decimator(dist, Math.max(ival, 0));
+                    }
+                    setResolution(this, rrm, d);
+                    break;
+                    
+                default: 
+                    _conf.log().warn("PubSub", "Client "+sesId(_ctx)+" - unknown binary frame type: "+type);
+            }
+        }
     }
    
    
@@ -86,7 +276,34 @@ public class PubSub extends WsNotifier implements ServerConfig.PubSub
 
 
    
-    private Map<String, Room> _rooms = new HashMap<String, Room>(); 
+    /* 
+     * Rooms are created and subscribed to from websocket threads, while messages 
+     * are posted from application threads. Lookups are lock-free. 
+     */
+    private Map<String, Room> _rooms = new ConcurrentHashMap<String, Room>(); 
+    private Map<Integer, Room> _roomsById = new ConcurrentHashMap<Integer, Room>();
+    private AtomicInteger _nextRoomId = new AtomicInteger(1);
+    
+    /* Wildcard subscriptions. Exact subscriptions are kept in the rooms */
+    private TopicTrie<Client> _wildcards = new TopicTrie<Client>();
+    
+    /* Bridge to other server nodes. null if not used */
+    private volatile PubSubBridge _bridge;
+    
+    /* Cell size (degrees) and max cells per view of the spatial index of rooms */
+    private double _cellSize;
+    private int _maxCells;
+    
+    /* Expiring rooms are removed after having no subscribers for this long (ms) */
+    private long _grace;
+    
+    /* Resume state of clients, by token. Kept for _resumeGrace ms after the session is closed */
+    private Map<String, Resume> _resume = new ConcurrentHashMap<String, Resume>();
+    private long _resumeGrace;
+    private static final java.security.SecureRandom _random = new java.security.SecureRandom();
+    
+    /* Expiry of rooms and resume state, and sending of decimated updates */
+    private final ScheduledExecutorService _gc = Executors.newScheduledThreadPool(1, daemonThreads("pubsub-gc"));
     
     
     
@@ -94,14 +311,72 @@ public class PubSub extends WsNotifier implements ServerConfig.PubSub
      * Room. 
      */
     public static class Room {
+        public String name;
+        public int id; 
+          // Set when room is added. The id identifies the room in the binary protocol
+          
         public Class msgClass;
-        public Set<String> cset = new HashSet<String>();
+        public Set<Client> cset = ConcurrentHashMap.newKeySet();
         public boolean login=false, operator=false, admin=false; 
           // true means that authorization is required 
           
         public boolean allowPost=false; 
           // false means that only admin can post. True means that authorized users can post
           
+        public Overflow overflow=null;
+          // What to do if outgoing queue of a client is full. null means use the client's setting 
+          
+        public int batchWindow=0;
+          // Time window (ms) for batching messages to clients that support batching. 
+          // 0 means use the client's setting
+          
+        public boolean compress=true;
+          // false means that messages are not compressed, even if client supports it
+          
+        public int priority=WsFrame.PRIO_NORMAL;
+          // Priority class of messages (WsFrame.PRIO_HIGH, PRIO_NORMAL or PRIO_LOW). Messages 
+          // of higher classes are sent first to each client, e.g. notifications before bulk data. 
+          
+        public boolean bridged=false;
+          // true means that messages are exchanged with other server nodes (see PubSubBridge)
+          
+        public final TrafficStats stats = new TrafficStats();
+          // Traffic counters
+          
+        public boolean expire=false;
+          // true means that the room is removed when it has had no subscribers for a 
+          // while (pubsub.room.grace). Used for rooms that are created on demand. 
+          
+        public TokenBucket putLimit;
+          // Limit on the rate of posts from clients (all together). If null when the room 
+          // is added, it is set from the configuration. 
+          
+        /* 
+         * Replay buffer. The last messages posted to the room are kept (as encoded 
+         * frames) and sent to new subscribers. Max number of messages and max age (ms).
+         */
+        private volatile ArrayDeque<WsFrame> _replay;
+        private int _replayMax; 
+        private long _replayAge;
+        
+        /* 
+         * Subscribers that have a view (bounding box) are in _views. The others are in _full. 
+         * _views is created when the first view is set. 
+         */
+        private volatile SpatialGrid<Client> _views;
+        private final Set<Client> _full = ConcurrentHashMap.newKeySet();
+        
+        /* Number of subscribers that have decimation of position updates */
+        private final AtomicInteger _nDecim = new AtomicInteger(0);
+        
+        /* Time when the last subscriber left (or the room was created). 0 if it has subscribers */
+        private volatile long _idleSince = System.currentTimeMillis();
+        private volatile boolean _removed = false;
+        
+        /* Sequence number of the last message. Only rooms with a replay buffer number their messages */
+        private long _seq = 0;
+        
+        
         public Room(Class cl)
             { msgClass = cl; }
         
@@ -118,28 +393,142 @@ public class PubSub extends WsNotifier implements ServerConfig.PubSub
                 (!admin || c._auth.admin));
         }
         
+        /** Return true if client is allowed to get messages from the room */
+        public boolean allowed(Client c) 
+            { return authorized(c); }
+        
         public boolean addClient(Client c) { 
-            if (authorized(c))
-                return cset.add(c.uid()); 
-            else 
+            if (!allowed(c))
                 return false;
+            c._joined.add(this);
+            if (_views == null || !_views.contains(c))
+                _full.add(c);
+            boolean added = cset.add(c);
+            _idleSince = 0;
+            return added;
         }
           
-        public void removeClient(Client c)
-            { cset.remove(c.uid()); }
+        public void removeClient(Client c) { 
+            cset.remove(c); 
+            _full.remove(c);
+            if (_views != null)
+                _views.remove(c);
+            if (c._decim.remove(this) != null)
+                _nDecim.decrementAndGet();
+            c._joined.remove(this);
+            if (cset.isEmpty())
+                _idleSince = System.currentTimeMillis();
+        }
+        
+        /** Time (ms) since the last subscriber left. 0 if the room has subscribers */
+        public long idleTime() {
+            long t = _idleSince;
+            return (t == 0 ? 0 : System.currentTimeMillis() - t);
+        }
             
         public boolean hasClient(Client c)
-            { return cset.contains(c.uid()); }
+            { return cset.contains(c); }
             
         public int nClients() 
             { return cset.size(); }
             
+        /** The subscribers of the room */
+        public Collection<Client> clients()
+            { return cset; }
+            
+        /** Return true if some subscribers have a view */
+        public boolean hasViews()
+            { return _views != null && _views.size() > 0; }
+            
+            
+        /** 
+         * Keep the last messages of the room and send them to new subscribers. 
+         * @param max Max number of messages to keep. 0 turns off replay. 
+         * @param maxAge Max age of messages (ms). 0 means no limit. 
+         */
+        public synchronized void setReplay(int max, long maxAge) {
+            _replayMax = max; 
+            _replayAge = maxAge;
+            if (max <= 0)
+                _replay = null;
+            else if (_replay == null)
+                _replay = new ArrayDeque<WsFrame>(max);
+            else
+                trimReplay();
+        }
+        
+        
+        public boolean hasReplay()
+            { return _replay != null; }
+            
+            
+        /* Add a frame to the replay buffer. Caller must hold the lock. */
+        protected void addReplay(WsFrame f) {
+            if (_replay == null)
+                return;
+            _replay.add(f);
+            trimReplay();
+        }
+        
+        
+        /* 
+         * Return true if the replay buffer has all messages after seq, i.e. a client that 
+         * has got the messages up to seq has not missed anything that is not in the buffer. 
+         * Caller must hold the lock. 
+         */
+        protected boolean covers(long seq, List<WsFrame> replay) {
+            if (seq > _seq)
+                return false;
+            if (replay.isEmpty())
+                return seq == _seq;
+            return replay.get(0).seq() <= seq + 1;
+        }
+        
+        
+        /* Get the frames in the replay buffer. Caller must hold the lock. */
+        protected List<WsFrame> getReplay() {
+            if (_replay == null)
+                return List.of();
+            trimReplay();
+            return new ArrayList<WsFrame>(_replay);
+        }
+        
+        
+        /* Remove frames that are too many or too old */
+        private void trimReplay() {
+            while (_replay.size() > _replayMax)
+                _replay.poll();
+            if (_replayAge > 0) {
+                long limit = System.currentTimeMillis() - _replayAge;
+                while (!_replay.isEmpty() && _replay.peek().time() < limit)
+                    _replay.poll();
+            }
+        }
+            
             
         public String toString() {return "Room["+cset.size()+"]"; }
     }
     
     
     
+    /**
+     * Room where only the latest message for each key matters (e.g. position or status
+     * of an object). The key of a message is computed by the keyOf function. It gets the 
+     * object given to put(), or the text given to putText(). If a client already has a 
+     * message with the same key waiting to be sent, it is replaced with the new one.
+     */
+    public static class ConflatingRoom extends Room {
+        public Function<Object, String> keyOf;
+        
+        public ConflatingRoom(Class cl, Function<Object, String> key)
+            { super(cl); keyOf = key; }
+            
+        public ConflatingRoom(boolean lg, boolean op, boolean a, boolean ap, Class cl, Function<Object, String> key)
+            { super(lg, op, a, ap, cl); keyOf = key; }
+    }
+    
+    
+    
     /**
      * Room which is only for clients having a specific username. 
      */
@@ -151,20 +540,53 @@ public class PubSub extends WsNotifier implements ServerConfig.PubSub
             userid = user;
         }
         
-        @Override public boolean addClient(Client c) {
+        @Override public boolean allowed(Client c) {
             if (c.userName() == null || !c.userName().equals(userid))
                 return false;
-            return super.addClient(c);
+            return super.allowed(c);
         }
     }
     
 
     
+    /**
+     * Resume state of a client. It has the subscriptions of the client and the sequence 
+     * number of the last message it has acknowledged in each room. When the client 
+     * reconnects and presents the token, the subscriptions are restored and only the 
+     * messages it has missed are replayed. 
+     */
+    protected static class Resume {
+        public final String token; 
+        public final String userid;
+        
+        /* Rooms and patterns subscribed to */
+        public final Set<String> subs = ConcurrentHashMap.newKeySet();
+        
+        /* 
+         * Last acknowledged message in each room. The room object is the key, so that 
+         * a room that is created again is not mistaken for the old one. 
+         */
+        public final Map<Room, Long> acked = new ConcurrentHashMap<Room, Long>();
+        
+        /* The client using it. null if the session is closed, and then the time it was closed */
+        public volatile Client client;
+        public volatile long closed = 0;
+        
+        public Resume(String tok, String uid)
+            { token = tok; userid = uid; }
+    }
+    
+    
+    
     @Override protected boolean subscribe(WsContext ctx, WsNotifier.Client client) 
     {
         if (client.login())
-            createUserRoom("notify:"+client.userName(), 
-               client.userName(), ServerConfig.Notification.class);
+            _addRoom("notify:"+client.userName(), () -> {
+                Room r = new UserRoom(client.userName(), ServerConfig.Notification.class); 
+                r.expire = true;
+                r.priority = WsFrame.PRIO_HIGH;
+                return r; 
+            });
         return true; 
     }
    
@@ -174,14 +596,329 @@ public class PubSub extends WsNotifier implements ServerConfig.PubSub
     /**
      * subscribe a client to a room. 
      */
-    protected void subscribe(Client c, String rid) {
+    protected void subscribe(Client c, String rid) 
+        { subscribe(c, rid, false); }
+        
+        
+    /**
+     * subscribe a client to a room. If resuming, only the messages after the last one 
+     * acknowledged by the client are replayed. If that is not possible, the client is 
+     * told to resync (RESYNC,room) and gets the whole replay buffer. 
+     * Return true if the subscription was accepted. 
+     */
+    protected boolean subscribe(Client c, String rid, boolean resuming) {
+        Resume rs = c._resume;
+        if (TopicTrie.isPattern(rid)) {
+            subscribePattern(c, rid);
+            if (rs != null)
+                rs.subs.add(rid);
+            return true;
+        }
         Room room = _rooms.get(rid);
         if (room == null) {
             _conf.log().warn("PubSub", "Room not found: "+rid);
+            return false;
+        }
+        /* 
+         * Lock the room so that no messages are posted between the replay 
+         * and the subscription. 
+         */
+        synchronized(room) {
+            if (room._removed) {
+                _conf.log().warn("PubSub", "Room was removed: "+rid);
+                return false;
+            }
+            if (!room.addClient(c)) {
+                _conf.log().warn("PubSub", "Client "+sesId(c.ctx())+" denied access to room: "+rid);
+                return false;
+            }
+            if (rs != null)
+                rs.subs.add(rid);
+            if (c.isBinary())
+                /* Tell binary client what id the room has */
+                c.send(WsFrame.roomInfo(room.id, rid));
+                
+            /* Send recent messages to the new subscriber, or the ones it has missed */
+            List<WsFrame> replay = room.getReplay();
+            long after = 0;
+            if (resuming) {
+                Long a = rs.acked.get(room);
+                if (a != null && room.covers(a, replay))
+                    after = a;
+                else 
+                    c.sendControl("RESYNC,"+rid);
+            }
+            for (WsFrame f : replay)
+                if (f.seq() > after)
+                    c.send(f, room.overflow, null);
+        }
+        receiversChanged(room);
+        return true;
+    }
+    
+    
+    /**
+     * Start or resume sequenced delivery for a client. With a token from an earlier 
+     * session (of the same user), its subscriptions are restored. Otherwise a new 
+     * token is made. The client is told the token (RESUME,token). A client has at most 
+     * one token: A token it got earlier in the same session is replaced, and its state 
+     * is moved to the new one. 
+     */
+    protected void resume(Client c, String token) {
+        Resume rs = (token == null ? null : _resume.get(token));
+        if (rs != null && rs == c._resume) {
+            c.sendControl("RESUME,"+rs.token);
+            return;
+        }
+        if (rs != null && !Objects.equals(rs.userid, c.userName()))
+            rs = null;
+        c.setSequenced(true);
+        
+        /* The token the client has now is replaced */
+        Resume prev = c._resume;
+        if (prev != null)
+            _resume.remove(prev.token, prev);
+            
+        if (rs == null) {
+            byte[] b = new byte[16];
+            _random.nextBytes(b);
+            rs = new Resume(java.util.Base64.getUrlEncoder().withoutPadding().encodeToString(b), c.userName());
+            if (prev != null) {
+                rs.subs.addAll(prev.subs);
+                rs.acked.putAll(prev.acked);
+            }
+            _resume.put(rs.token, rs);
+            rs.client = c; 
+            c._resume = rs;
+            c.sendControl("RESUME,"+rs.token);
+            return;
+        }
+        
+        /* The old session may not have been closed yet. Take over */
+        Client old = rs.client;
+        if (old != null)
+            old._resume = null;
+        rs.client = c;
+        rs.closed = 0;
+        c._resume = rs;
+        c.sendControl("RESUME,"+rs.token);
+        _conf.log().debug("PubSub", "Client "+sesId(c.ctx())+" resumes "+rs.subs.size()+" subscriptions");
+        for (String rid : new ArrayList<String>(rs.subs))
+            if (!subscribe(c, rid, true))
+                rs.subs.remove(rid);
+                
+        /* Keep the subscriptions the client already had */
+        if (prev != null) {
+            rs.subs.addAll(prev.subs);
+            for (Map.Entry<Room, Long> x : prev.acked.entrySet())
+                rs.acked.merge(x.getKey(), x.getValue(), Math::max);
+        }
+    }
+    
+    
+    /**
+     * Acknowledge the messages of a room up to seq. 
+     */
+    protected void ack(Client c, String rid, String seq) {
+        Resume rs = c._resume;
+        Room rm = _rooms.get(rid);
+        if (rs == null || rm == null || seq == null || !rm.hasClient(c))
             return;
+        try {
+            rs.acked.merge(rm, Long.parseLong(seq.trim()), Math::max);
+        }
+        catch (NumberFormatException e) {
+            _conf.log().warn("PubSub", "Client "+sesId(c.ctx())+" - format error in ACK command: "+seq);
+        }
+    }
+    
+    
+    /* Remove the resume state of clients that have been gone longer than the grace period */
+    private void expireResume() {
+        long now = System.currentTimeMillis();
+        _resume.values().removeIf(rs -> rs.client == null && now - rs.closed > _resumeGrace);
+    }
+    
+    
+    /**
+     * Subscribe a client to all rooms matching a pattern, including rooms that are 
+     * created later. Access is checked for each room when messages are posted. 
+     * Recent messages are not replayed. 
+     */
+    protected void subscribePattern(Client c, String pattern) {
+        c._patterns.add(pattern);
+        _wildcards.add(pattern, c);
+        patternsChanged();
+    }
+    
+    
+    /**
+     * Enable batching of messages to a client. Argument is 'window[,maxsize]'. 
+     * A negative window turns batching off. 
+     */
+    protected void setBatching(Client c, String arg) {
+        String[] a = arg.split(",", 2);
+        try {
+            c.setBatching(Integer.parseInt(a[0].trim()), 
+                (a.length < 2 ? 0 : Integer.parseInt(a[1].trim())));
+        }
+        catch (NumberFormatException e) {
+            _conf.log().warn("PubSub", "Client "+sesId(c.ctx())+" - format error in BATCH command: "+arg);
+        }
+    }
+    
+    
+    /**
+     * Set the view of a client in a room. Argument is 'minlat,minlon,maxlat,maxlon'. 
+     * If null, the view is removed. 
+     */
+    protected void setView(Client c, String rid, String arg) {
+        Room rm = _rooms.get(rid);
+        if (rm == null)
+            return;
+        SpatialGrid.Box box = null;
+        if (arg != null) {
+            String[] a = arg.split(",");
+            try {
+                box = new SpatialGrid.Box(Double.parseDouble(a[0]), Double.parseDouble(a[1]), 
+                    Double.parseDouble(a[2]), Double.parseDouble(a[3]));
+            }
+            catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                _conf.log().warn("PubSub", "Client "+sesId(c.ctx())+" - format error in VIEW command: "+arg);
+                return;
+            }
+        }
+        setView(c, rm, box);
+    }
+    
+    
+    /**
+     * Set the view (bounding box) of a client in a room. Messages posted with a position 
+     * are only sent to the client if the position is inside the box. If box is null, the 
+     * client gets all messages. The client must be a subscriber of the room, or get its 
+     * messages through a pattern. 
+     */
+    public void setView(Client c, Room rm, SpatialGrid.Box box) {
+        synchronized(rm) {
+            if (!rm.hasClient(c)) {
+                if (box == null)
+                    c._wcViews.remove(rm);
+                else if (patternReceiver(rm, c))
+                    c._wcViews.put(rm, box);
+                return;
+            }
+            if (box == null) {
+                if (rm._views != null)
+                    rm._views.remove(c);
+                rm._full.add(c);
+                return;
+            }
+            if (rm._views == null)
+                rm._views = new SpatialGrid<Client>(_cellSize, _maxCells);
+            rm._views.put(c, box);
+            rm._full.remove(c);
+        }
+    }
+    
+    
+    /**
+     * Set the resolution of a client in a room. Argument is 'meters[,ms]'. 
+     * If null, decimation is turned off. 
+     */
+    protected void setResolution(Client c, String rid, String arg) {
+        Room rm = _rooms.get(rid);
+        if (rm == null)
+            return;
+        Decimator d = null;
+        if (arg != null) {
+            String[] a = arg.split(",", 2);
+            try {
+                d = new Decimator(Double.parseDouble(a[0]), (a.length < 2 ? 0 : Long.parseLong(a[1].trim())));
+            }
+            catch (NumberFormatException e) {
+                _conf.log().warn("PubSub", "Client "+sesId(c.ctx())+" - format error in RES command: "+arg);
+                return;
+            }
+        }
+        setResolution(c, rm, d);
+    }
+    
+    
+    /**
+     * Set decimation of position updates to a client in a room. Messages posted with 
+     * a position and a key (see ConflatingRoom) are only sent to the client if the 
+     * decimator lets them through. If d is null, decimation is turned off. 
+     * The client must be a subscriber of the room, or get its messages through a pattern. 
+     */
+    public void setResolution(Client c, Room rm, Decimator d) {
+        synchronized(rm) {
+            if (!rm.hasClient(c)) {
+                if (d == null)
+                    c._wcDecim.remove(rm);
+                else if (patternReceiver(rm, c))
+                    c._wcDecim.put(rm, d);
+                return;
+            }
+            Decimator prev = (d == null ? c._decim.remove(rm) : c._decim.put(rm, d));
+            if (prev == null && d != null)
+                rm._nDecim.incrementAndGet();
+            else if (prev != null && d == null)
+                rm._nDecim.decrementAndGet();
+        }
+    }
+    
+    
+    /* 
+     * Return true if a message is to be sent to a client, after decimation. Only messages 
+     * with a position and a key are decimated. 
+     */
+    private boolean decimate(Room rm, Client c, WsFrame msg) {
+        Decimator d = c._decim.get(rm);
+        return d == null || d.pass(msg);
+    }
+    
+    
+    /* The message was queued for the client. Tell its decimator */
+    private void decimated(Room rm, Client c, WsFrame msg) {
+        Decimator d = c._decim.get(rm);
+        if (d != null)
+            d.sent(msg);
+    }
+    
+    
+    /* 
+     * Send the updates that decimators have held back, when no newer update of the 
+     * object has come for a while. So clients get the last position of objects that stop. 
+     */
+    private void flushDecimated() {
+        try {
+            for (WsNotifier.Client x : clients()) {
+                Client c = (Client) x;
+                flushDecimated(c, c._decim, true);
+                flushDecimated(c, c._wcDecim, false);
+            }
+        }
+        catch (Exception e) {
+            _conf.log().warn("PubSub", "Cannot flush decimated updates: "+e);
+        }
+    }
+    
+    
+    /* 
+     * Send the due updates of the decimators of a client. member tells if they are for 
+     * rooms the client subscribes to, or for rooms it gets through a pattern. 
+     */
+    private void flushDecimated(Client c, Map<Room, Decimator> decim, boolean member) {
+        for (Map.Entry<Room, Decimator> e : decim.entrySet()) {
+            Room rm = e.getKey();
+            for (WsFrame f : e.getValue().due()) {
+                SpatialGrid<Client> views = rm._views;
+                SpatialGrid.Box b = (!member ? c._wcViews.get(rm) : views == null ? null : views.get(c));
+                if (!rm._removed && rm.hasClient(c) == member && (b == null || b.contains(f.lat(), f.lon())) 
+                      && c.send(f, rm.overflow, null))
+                    e.getValue().sent(f);
+            }
         }
-        if (!room.addClient(c))
-            _conf.log().warn("PubSub", "Client "+sesId(c.ctx())+" denied access to room: "+rid);
     }
     
     
@@ -189,41 +926,264 @@ public class PubSub extends WsNotifier implements ServerConfig.PubSub
      * unsubscribe a client from a room. 
      */
     protected void unsubscribe(Client c, String rid) {
+        if (c._patterns.remove(rid)) {
+            Resume rs = c._resume;
+            if (rs != null)
+                rs.subs.remove(rid);
+            _wildcards.remove(rid, c);
+            prunePatternState(c);
+            patternsChanged();
+            return;
+        }
         Room room = _rooms.get(rid);
         if (room == null)
             return;
         room.removeClient(c);
+        Resume rs = c._resume;
+        if (rs != null) {
+            rs.subs.remove(rid);
+            rs.acked.remove(room);
+        }
+        receiversChanged(room);
     }
     
     
+    /* Return true if the client gets messages from the room through a pattern, and is not a subscriber */
+    private boolean patternReceiver(Room rm, Client c) {
+        if (c._patterns.isEmpty() || rm.hasClient(c) || !rm.allowed(c))
+            return false;
+        Set<Client> wc = new HashSet<Client>();
+        _wildcards.match(rm.name, wc);
+        return wc.contains(c);
+    }
     
-    /** Create a room */
-    public void createRoom(String name, Class cl) { 
-        if (!_rooms.containsKey(name))
-            _rooms.put(name, new Room(cl)); 
+    
+    /* Remove views and decimators of rooms that the client no longer gets through a pattern */
+    private void prunePatternState(Client c) {
+        c._wcViews.keySet().removeIf(rm -> !patternReceiver(rm, c));
+        c._wcDecim.keySet().removeIf(rm -> !patternReceiver(rm, c));
     }
     
     
+    /* Tell the bridge (if any) that the local subscribers of a room may have changed */
+    private void receiversChanged(Room rm) {
+        PubSubBridge b = _bridge;
+        if (b != null && rm.bridged)
+            b.update(rm.name);
+    }
     
-    /** Create a room with restricted access */
-    public void createRoom(String name, boolean lg, boolean operator, boolean adm, boolean post, Class cl) { 
-        if (!_rooms.containsKey(name))
-            _rooms.put(name, new Room(lg, operator, adm, post, cl)); 
+    
+    /* Tell the bridge (if any) that pattern subscriptions have changed. Any bridged room may be affected */
+    private void patternsChanged() {
+        PubSubBridge b = _bridge;
+        if (b != null)
+            for (String r : bridgedRooms())
+                b.update(r);
     }
     
     
     
-    /** Create a room for a given userid */
-    public void createUserRoom(String name, String userid, Class cl) { 
-        if (!_rooms.containsKey(name))
-            _rooms.put(name, new UserRoom(userid, cl)); 
+    /** Set the bridge to other server nodes. Called by PubSubBridge */
+    public synchronized void setBridge(PubSubBridge b) 
+        { _bridge = b; }
+        
+        
+    /** Remove the bridge, if it is b. Called by PubSubBridge when it is closed */
+    public synchronized void removeBridge(PubSubBridge b) {
+        if (_bridge == b)
+            _bridge = null;
+    }
+        
+    
+    
+    /** Names of the rooms that are bridged to other server nodes */
+    public List<String> bridgedRooms() {
+        List<String> res = new ArrayList<String>();
+        for (Room rm : _rooms.values())
+            if (rm.bridged)
+                res.add(rm.name);
+        return res;
+    }
+    
+    
+    
+    /** 
+     * Return true if there are local clients that get messages from the room, 
+     * as subscribers or through patterns. 
+     */
+    public boolean hasLocalReceivers(Room rm) {
+        if (rm.nClients() > 0)
+            return true;
+        if (_wildcards.isEmpty())
+            return false;
+        List<Client> wc = new ArrayList<Client>();
+        _wildcards.match(rm.name, wc);
+        for (Client c : wc)
+            if (rm.allowed(c))
+                return true;
+        return false;
     }
+    
+    
+    
+    /** Create a room */
+    public void createRoom(String name, Class cl) 
+        { _addRoom(name, ()-> new Room(cl)); }
+    
+    
+    
+    /** Create a room with restricted access */
+    public void createRoom(String name, boolean lg, boolean operator, boolean adm, boolean post, Class cl) 
+        { _addRoom(name, ()-> new Room(lg, operator, adm, post, cl)); }
+    
+    
+    
+    /** Create a room for a given userid */
+    public void createUserRoom(String name, String userid, Class cl) 
+        { createUserRoom(name, userid, cl, false); }
+    
+    
+    
+    /** 
+     * Create a room for a given userid. If expire is true, the room is removed 
+     * when it has had no subscribers for a while. 
+     */
+    public void createUserRoom(String name, String userid, Class cl, boolean expire) 
+        { _addRoom(name, ()-> { Room r = new UserRoom(userid, cl); r.expire = expire; return r; }); }
+    
+    
+    
+    /** 
+     * Create a room that is removed when it has had no subscribers for a while 
+     * (pubsub.room.grace). For rooms that are created on demand, e.g. per user. 
+     */
+    public void createExpiringRoom(String name, Class cl) 
+        { _addRoom(name, ()-> { Room r = new Room(cl); r.expire = true; return r; }); }
 
     
     
+    /** Add a room. Can be used for subclasses of Room */
+    public void addRoom(String name, Room rm) 
+        { _addRoom(name, ()-> rm); }
+        
+        
+        
+    /* 
+     * Add a room if it doesn't exist. This is atomic, so if two threads try 
+     * to create the same room, only one is created. The common case, that
+     * the room exists, is a lock-free lookup. 
+     */
+    private Room _addRoom(String name, Supplier<Room> f) {
+        Room rm = _rooms.get(name);
+        if (rm != null)
+            return rm;
+        return _rooms.computeIfAbsent(name, n -> {
+            Room r = f.get();
+            r.name = n;
+            if (r.putLimit == null)
+                r.putLimit = TokenBucket.fromConfig(_conf, "pubsub.limit.room.put", 0, 200);
+            r.id = _nextRoomId.getAndIncrement();
+            _roomsById.put(r.id, r);
+            return r;
+        });
+    }
+    
+    
+    
     /** Remove a room */
-    public void removeRoom(String name) 
-        { _rooms.remove(name); }
+    public void removeRoom(String name) { 
+        Room rm = _rooms.get(name); 
+        if (rm != null)
+            synchronized(rm) {
+                _removeRoom(rm);
+            }
+    }
+    
+    
+    
+    /* 
+     * Remove a room. Caller must hold the lock of the room. The state that clients 
+     * have for the room, as subscribers or through patterns, is removed too. 
+     */
+    private void _removeRoom(Room rm) {
+        if (!_rooms.remove(rm.name, rm))
+            return;
+        rm._removed = true;
+        _roomsById.remove(rm.id);
+        for (Client c : rm.clients()) {
+            c._joined.remove(rm);
+            if (c._decim.remove(rm) != null)
+                rm._nDecim.decrementAndGet();
+        }
+        List<Client> wc = new ArrayList<Client>();
+        _wildcards.match(rm.name, wc);
+        for (Client c : wc) {
+            c._wcViews.remove(rm);
+            c._wcDecim.remove(rm);
+            c._knownRooms.remove(rm.id);
+        }
+    }
+    
+    
+    
+    /* 
+     * Remove expiring rooms that have had no subscribers for longer than the grace period. 
+     * The room is checked again with the lock held, in case a client subscribes now. 
+     * Rooms that clients get messages from through patterns are kept. 
+     */
+    private void expireRooms() {
+        try {
+            int n = 0;
+            for (Room rm : _rooms.values())
+                if (rm.expire && rm.idleTime() > _grace)
+                    synchronized(rm) {
+                        if (rm.idleTime() > _grace && !hasLocalReceivers(rm)) {
+                            _removeRoom(rm);
+                            n++;
+                        }
+                    }
+            if (n > 0)
+                _conf.log().debug("PubSub", "Removed "+n+" idle rooms");
+        }
+        catch (Exception e) {
+            _conf.log().warn("PubSub", "Cannot expire rooms: "+e);
+        }
+    }
+    
+    
+    
+    /** Traffic counters of each room */
+    public List<TrafficStats.Info> roomStats() {
+        List<TrafficStats.Info> res = new ArrayList<TrafficStats.Info>();
+        for (Room rm : _rooms.values())
+            res.add(rm.stats.info(rm.name, rm.nClients()));
+        return res;
+    }
+    
+    
+    
+    /* Number of nodes in the index of pattern subscriptions. For tests */
+    int nPatternNodes()
+        { return _wildcards.nNodes(); }
+        
+        
+    /* Number of resume tokens kept. For tests */
+    int nResume()
+        { return _resume.size(); }
+    
+    
+    
+    /** Traffic counters of a room. null if it doesn't exist */
+    public TrafficStats.Info roomStats(String name) {
+        Room rm = _rooms.get(name);
+        return (rm == null ? null : rm.stats.info(name, rm.nClients()));
+    }
+    
+    
+    
+    /** Get a room. null if it doesn't exist */
+    public Room getRoom(String name)
+        { return _rooms.get(name); }
     
     
     
@@ -235,46 +1195,306 @@ public class PubSub extends WsNotifier implements ServerConfig.PubSub
     
     /** 
       * Post a message to members of a room. If uname is given, 
-      * the message will be posted only to the named member
+      * the message will be posted only to the named member. 
+      * Only the subscribers of the room are visited, not every connected client. 
       */
-    private void _put(Room rm, String msg, String uname) {
-        if (rm == null || rm.nClients() == 0) 
-            return;
+    private ServerConfig.Delivery _put(Room rm, WsFrame msg, String uname) {
+        if (rm == null) 
+            return new ServerConfig.Delivery();
+        
+        /* 
+         * If the room has a replay buffer, add the message to it. Lock the room
+         * so that new subscribers do not get the message twice. 
+         */
+        if (uname == null && rm.hasReplay()) 
+            synchronized(rm) {
+                msg.setSeq(++rm._seq);
+                rm.addReplay(msg);
+                return _send(rm, msg, uname);
+            }
+        return _send(rm, msg, uname);
+    }
+    
+    
+    
+    private ServerConfig.Delivery _send(Room rm, WsFrame msg, String uname) {
+        ServerConfig.Delivery res = new ServerConfig.Delivery();
+        long t = System.nanoTime();
+        if (!hasReceivers(rm)) {
+            rm.stats.count(msg.size(), res, 0);
+            return res;
+        }
+        try {
+            Predicate<WsNotifier.Client> pred = (uname==null ? null : c -> uname.equals(c.userName()));
+            
+            /* Decimated clients: The decimator is told when the message is queued */
+            boolean decim = msg.hasPosition() && msg.key() != null && rm._nDecim.get() > 0;
+            Consumer<WsNotifier.Client> sent = (decim ? c -> decimated(rm, (Client) c, msg) : null);
+            if (decim) {
+                Predicate<WsNotifier.Client> p = pred;
+                pred = c -> (p == null || p.test(c)) && decimate(rm, (Client) c, msg);
+            }
+            if (uname != null) {
+                /* Only the sessions of the user are visited */
+                for (WsNotifier.Client x : userClients(uname)) {
+                    Client c = (Client) x;
+                    if (!rm.hasClient(c))
+                        continue;
+                    SpatialGrid.Box b = (msg.hasPosition() && rm.hasViews() ? rm._views.get(c) : null);
+                    if (b != null && !b.contains(msg.lat(), msg.lon()))
+                        continue;
+                    if ((pred == null || pred.test(c)) && c.send(msg, rm.overflow, res) && sent != null)
+                        sent.accept(c);
+                }
+            }
+            else if (msg.hasPosition() && rm.hasViews()) {
+                /* 
+                 * Subscribers without a view get the message. Subscribers with a view are 
+                 * looked up in the spatial index, so only the matching ones are visited. 
+                 */
+                res = sendAll(rm._full, msg, rm.overflow, pred, sent);
+                List<Client> vc = new ArrayList<Client>();
+                rm._views.match(msg.lat(), msg.lon(), vc);
+                ServerConfig.Delivery r = sendAll(vc, msg, rm.overflow, pred, sent);
+                res.delivered += r.delivered;
+                res.dropped += r.dropped;
+            }
+            else
+                res = sendAll(rm.clients(), msg, rm.overflow, pred, sent);
+                    
+            /* 
+             * Clients subscribing to matching patterns. A client that also subscribes to the 
+             * room itself, or to more than one matching pattern, gets the message only once. 
+             * Their views and decimation in the room are applied as for subscribers. 
+             */
+            if (!_wildcards.isEmpty()) {
+                Set<Client> wc = new HashSet<Client>();
+                _wildcards.match(rm.name, wc);
+                for (Client c : wc)
+                    if (!rm.hasClient(c) && rm.allowed(c) && (uname==null || uname.equals(c.userName()))) {
+                        SpatialGrid.Box b = (msg.hasPosition() ? c._wcViews.get(rm) : null);
+                        if (b != null && !b.contains(msg.lat(), msg.lon()))
+                            continue;
+                        Decimator d = (msg.hasPosition() && msg.key() != null ? c._wcDecim.get(rm) : null);
+                        if (d != null && !d.pass(msg))
+                            continue;
+                        if (c.isBinary() && c._knownRooms.add(rm.id))
+                            c.send(WsFrame.roomInfo(rm.id, rm.name));
+                        if (c.send(msg, rm.overflow, res) && d != null)
+                            d.sent(msg);
+                    }
+            }
+        }
+        catch (Exception e) {
+            _conf.log().error("PubSub", "Cannot distribute string: " + e);
+            e.printStackTrace(System.out);
+        }
+        rm.stats.count(msg.size(), res, System.nanoTime() - t);
+        return res;
+    }
+    
+    
+    
+    /* Return true if anyone may get messages posted to the room */
+    private boolean hasReceivers(Room rm)
+        { return rm.nClients() > 0 || !_wildcards.isEmpty(); }
+    
+    
+    
+    /* 
+     * Post a message. If obj is given, msg is its JSON encoding, and it is
+     * CBOR encoded for clients using the binary protocol. Both are encoded before 
+     * the frame is queued, so later changes to obj do not reach the clients.
+     */
+    private ServerConfig.Delivery _putText(Room rm, String rid, String msg, Object obj, String key, String uname, double[] pos) {
         _conf.log().debug("PubSub", "Post message: "+rm+", "+uname+", "+msg);
-        postText(msg, 
-           c-> (rm != null && rm.hasClient((PubSub.Client) c) && 
-                    (uname==null || uname.equals(((PubSub.Client) c).userName()))
-               )
-        );
+        WsFrame frame = new WsFrame(rid, msg, key);
+        if (pos != null)
+            frame.setPosition(pos[0], pos[1]);
+        frame.setBatchWindow(rm.batchWindow);
+        frame.setDeflate(rm.compress);
+        frame.setPriority(rm.priority);
+        frame.setBinary(rm.id, (obj == null ? null : ServerBase.serializeCbor(obj)));
+        return _put(rm, frame, uname);
     }
     
     
     
-    /** Post a message to a room (text is prefixed with the room name) */
-    public void putText (String rid, String msg, String uname) { 
-        if (hasRoom(rid))
-            _put(_rooms.get(rid), rid+","+msg, uname); 
+    /* Conflation key of a message. Rooms may have the same keys so the room name is included */
+    private String keyOf(Room rm, String rid, Object msg) {
+        if (rm instanceof ConflatingRoom crm && crm.keyOf != null) {
+            String key = crm.keyOf.apply(msg);
+            return (key == null ? null : rid + "," + key);
+        }
+        return null;
     }
     
     
+    
+    /** 
+     * Post a message to a room (text is prefixed with the room name). 
+     * The message is encoded once and the frame is shared by all receivers. 
+     */
+    public void putText (String rid, String msg, String uname) 
+        { _postText(rid, msg, uname, null); }
+    
+    
     public void putText (String rid, String msg)
         { putText(rid, msg, null); }
+        
+        
+    /** 
+     * Post a message about a position to a room. Subscribers that have a view only 
+     * get it if the position is inside the view. 
+     */
+    public void putText (String rid, String msg, double lat, double lon)
+        { _postText(rid, msg, null, new double[] {lat, lon}); }
+    
+    
+    /** 
+     * As putText, but return the number of clients the message was delivered to 
+     * and the number of dropped messages. 
+     */
+    public ServerConfig.Delivery deliverText (String rid, String msg, String uname) 
+        { return _postText(rid, msg, uname, null); }
+    
+    
+    public ServerConfig.Delivery deliverText (String rid, String msg)
+        { return deliverText(rid, msg, null); }
+    
+    
+    private ServerConfig.Delivery _postText(String rid, String msg, String uname, double[] pos) {
+        Room rm = _rooms.get(rid);
+        if (rm == null)
+            return new ServerConfig.Delivery();
+        forward(rm, msg, false, uname, pos);
+        if (!hasReceivers(rm) && !rm.hasReplay())
+            return new ServerConfig.Delivery();
+        return _putText(rm, rid, msg, null, keyOf(rm, rid, msg), uname, pos); 
+    }
     
     
     /** Post a object to a room (JSON encoded) */
     public void put(String rid, Object obj, String uname) 
-        { putText(rid, toJson(obj), uname); }
+        { _post(rid, obj, uname, null); }
     
     
     public void put(String rid, Object obj)
         { put(rid, obj, null); }
         
         
-    public PubSub(ServerConfig conf)
-        { super(conf); }  
+    /** 
+     * Post a object about a position to a room (JSON encoded). Subscribers that have 
+     * a view only get it if the position is inside the view. 
+     */
+    public void put(String rid, Object obj, double lat, double lon)
+        { _post(rid, obj, null, new double[] {lat, lon}); }
+    
+    
+    /** 
+     * As put, but return the number of clients the object was delivered to 
+     * and the number of dropped messages. 
+     */
+    public ServerConfig.Delivery deliver(String rid, Object obj, String uname) 
+        { return _post(rid, obj, uname, null); }
+    
+    
+    public ServerConfig.Delivery deliver(String rid, Object obj)
+        { return deliver(rid, obj, null); }
+    
+    
+    private ServerConfig.Delivery _post(String rid, Object obj, String uname, double[] pos) { 
+        Room rm = _rooms.get(rid);
+        if (rm == null)
+            return new ServerConfig.Delivery();
+        PubSubBridge remote = forwarder(rm, uname);
+        if (remote == null && !hasReceivers(rm) && !rm.hasReplay())
+            return new ServerConfig.Delivery();
+        String msg = toJson(obj);
+        if (remote != null)
+            remote.forward(rid, msg, true, pos);
+        return _putText(rm, rid, msg, obj, keyOf(rm, rid, obj), uname, pos); 
+    }
+        
+        
+        
+    /* The bridge, if a message to the room is to be forwarded to other nodes. Otherwise null */
+    private PubSubBridge forwarder(Room rm, String uname) {
+        PubSubBridge b = _bridge;
+        return (b != null && rm.bridged && uname == null && b.hasRemoteInterest(rm.name) ? b : null);
+    }
+        
+        
+    private void forward(Room rm, String msg, boolean obj, String uname, double[] pos) {
+        PubSubBridge b = forwarder(rm, uname);
+        if (b != null)
+            b.forward(rm.name, msg, obj, pos);
+    }
+    
+    
+    
+    /* 
+     * Post a message that comes from another node, to local clients only. 
+     * If obj is given, msg is its JSON encoding. 
+     */
+    ServerConfig.Delivery putLocal(Room rm, String msg, Object obj, double[] pos) {
+        if (!hasReceivers(rm) && !rm.hasReplay())
+            return new ServerConfig.Delivery();
+        return _putText(rm, rm.name, msg, obj, keyOf(rm, rm.name, (obj == null ? msg : obj)), null, pos); 
+    }
+        
+        
+    public PubSub(ServerConfig conf) { 
+        super(conf); 
+        _grace = _conf.getIntProperty("pubsub.room.grace", 300) * 1000L;
+        _cellSize = Double.parseDouble(_conf.getProperty("pubsub.grid.cellsize", "0.5"));
+        _maxCells = _conf.getIntProperty("pubsub.grid.maxcells", 1024);
+        long period = Math.max(Math.min(_grace, 60000), 1000);
+        _resumeGrace = _conf.getIntProperty("pubsub.resume.grace", 120) * 1000L;
+        _gc.scheduleAtFixedRate( () -> { expireRooms(); expireResume(); }, period, period, TimeUnit.MILLISECONDS);
+        _gc.scheduleAtFixedRate( () -> flushDecimated(), 1000, 1000, TimeUnit.MILLISECONDS);
+        
+        /* 
+         * Rooms hold references to clients. Remove them when session is closed. 
+         * Only the rooms that the client has joined are visited. 
+         */
+        onCloseSes( x -> {
+            Client c = (Client) x;
+            List<Room> joined = new ArrayList<Room>(c._joined);
+            for (Room rm : joined) {
+                rm.removeClient(c);
+                receiversChanged(rm);
+            }
+            for (String p : c._patterns)
+                _wildcards.remove(p, c);
+            if (!c._patterns.isEmpty())
+                patternsChanged();
+                    
+            /* Keep the resume state for a while, so that the client can come back */
+            Resume rs = c._resume;
+            if (rs != null && rs.client == c) {
+                rs.closed = System.currentTimeMillis();
+                rs.client = null;
+            }
+        });
+    }  
    
    
     
+    /** 
+     * Stop the service. Expiry of rooms and sending of decimated updates are stopped too, 
+     * and the bridge to other nodes is closed. 
+     */
+    @Override public void stop() {
+        _gc.shutdownNow();
+        PubSubBridge b = _bridge;
+        if (b != null)
+            b.close();
+        super.stop();
+    }
+    
+    
+    
     /** Factory method. */
     @Override public WsNotifier.Client newClient(WsContext ctx) 
         { return new Client(ctx); }
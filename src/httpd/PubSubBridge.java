@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import no.polaric.core.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import com.fasterxml.jackson.databind.JsonNode;
+
+
+
+/**
+ * Bridge that lets PubSub rooms span several server nodes, using the NodeWsApi
+ * links between them. Only rooms marked as bridged (Room.bridged) are forwarded,
+ * and the room must exist on each node.
+ *
+ * A node tells its neighbours which bridged rooms it (or the nodes behind it) has
+ * subscribers to. Messages are forwarded only to neighbours that have told they
+ * are interested. Interest is announced when it changes and refreshed
+ * periodically. It expires if not refreshed, e.g. if a node goes away.
+ *
+ * Interest carries the id of the node that has the subscribers (origin) and its
+ * distance in hops. Interest is not announced back to the neighbour it was learned
+ * from, a node ignores interest that has its own id as origin, and interest that
+ * has passed maxhops nodes is dropped. Interest can therefore not keep itself
+ * alive in a cycle of nodes after the subscribers are gone.
+ *
+ * Each message carries the id of the node it was posted on and a sequence number.
+ * A node does not forward a message back to the node it came from, and drops
+ * messages it has already seen. Sequence numbers start again when a node restarts,
+ * so messages also carry a random epoch that is chosen when the bridge is created.
+ * Messages posted to a single user are not forwarded.
+ *
+ * Configuration properties:
+ *   pubsub.bridge.refresh  - Interval (seconds) for refreshing interest (default 60)
+ *   pubsub.bridge.maxhops  - Max number of hops for a message or for interest (default 8)
+ *
+ * The bridge is closed when the PubSub service is stopped, or by calling close(). 
+ */
+
+public class PubSubBridge {
+
+    /** Message exchanged between nodes */
+    public static class Message {
+        public String type;           // INTEREST, NOINTEREST or PUT
+        public List<String> rooms;    // INTEREST, NOINTEREST: rooms
+        public String room;           // PUT: room
+        public String msg;            // PUT: message text
+        public boolean obj;           // PUT: true if msg is a JSON encoded object
+        public String origin;         // PUT: node where message was posted. INTEREST, NOINTEREST: 
+                                      // node that has the subscribers (null means the sender)
+        public long seq;              // PUT: sequence number at origin node
+        public long epoch;            // PUT: epoch of origin node (changes when it restarts). 0 if none
+        public int hops;              // PUT: number of nodes passed. INTEREST: distance from sender to origin
+        public double[] pos;          // PUT: position (lat, lon) the message is about. null if none
+
+        public Message() {}
+
+        public Message(String t, List<String> r, String o, int h)
+            { type=t; rooms=r; origin=o; hops=h; }
+    }
+
+
+    /* Route to an origin of interest through a neighbour: Distance (hops) from the neighbour and expiry time */
+    private static class Route {
+        final int hops;
+        final long expires;
+
+        Route(int h, long e)
+            { hops=h; expires=e; }
+    }
+
+
+    private ServerConfig _conf;
+    private PubSub _psub;
+    private NodeWsApi<Message> _api;
+    private String _nodeid;
+    private long _refresh;
+    private int _maxHops;
+    private AtomicLong _seq = new AtomicLong(0);
+    private final long _epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+
+    /* 
+     * Interest of neighbour nodes: room -> (node -> (origin -> route)). A node is only in the 
+     * map while it has routes. Routes are added and removed with compute, so that a route is
+     * never added to a map that is being removed. 
+     */
+    private Map<String, Map<String, Map<String, Route>>> _remote = new ConcurrentHashMap<>();
+
+    /* Interest that we have announced to each neighbour: node -> (room -> (origin -> hops)) */
+    private Map<String, Map<String, Map<String, Integer>>> _announced = new HashMap<>();
+
+    /* Recently seen messages (origin:epoch:seq), to suppress loops */
+    private Set<String> _seen = Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> e)
+            { return size() > 4096; }
+    });
+
+    /* Messages are sent on a single thread, so that posting is never blocked by the network */
+    private final ExecutorService _out = Executors.newSingleThreadExecutor(WsNotifier.daemonThreads("bridge-out"));
+    private final ScheduledExecutorService _sched = Executors.newScheduledThreadPool(1, WsNotifier.daemonThreads("bridge-refresh"));
+    private volatile boolean _closed = false;
+
+
+
+    public PubSubBridge(ServerConfig conf, PubSub psub, NodeWsApi<Message> api) {
+        _conf = conf;
+        _psub = psub;
+        _api = api;
+        _nodeid = api.nodeId();
+        _refresh = conf.getIntProperty("pubsub.bridge.refresh", 60) * 1000L;
+        _maxHops = conf.getIntProperty("pubsub.bridge.maxhops", 8);
+
+        _api.setHandler( (nodeid, m) -> recv(nodeid, m) );
+        _psub.setBridge(this);
+        _sched.scheduleAtFixedRate( () -> refresh(), _refresh, _refresh, TimeUnit.MILLISECONDS);
+    }
+
+
+
+    /** 
+     * Stop the bridge: It is detached from the PubSub service, refresh is stopped and 
+     * nothing more is sent or received. Messages that are queued already are still sent. 
+     */
+    public void close() {
+        _closed = true;
+        _psub.removeBridge(this);
+        _sched.shutdownNow();
+        _out.shutdown();
+    }
+
+
+
+    /** Return true if any neighbour node is interested in the room */
+    public boolean hasRemoteInterest(String room) {
+        Map<String, Map<String, Route>> x = _remote.get(room);
+        return x != null && !x.isEmpty();
+    }
+
+
+
+    /* Add a route to an origin through a neighbour. Return the route it replaces, if any */
+    private Route addRoute(String room, String node, String origin, Route r) {
+        Route[] prev = new Route[1];
+        _remote.computeIfAbsent(room, k -> new ConcurrentHashMap<String, Map<String, Route>>())
+            .compute(node, (k, routes) -> {
+                if (routes == null)
+                    routes = new ConcurrentHashMap<String, Route>();
+                prev[0] = routes.put(origin, r);
+                return routes;
+            });
+        return prev[0];
+    }
+
+
+
+    /* 
+     * Remove routes through a neighbour: To the given origin, or all if origin is null. 
+     * Return true if any were removed. 
+     */
+    private boolean removeRoute(String room, String node, String origin) {
+        Map<String, Map<String, Route>> x = _remote.get(room);
+        if (x == null)
+            return false;
+        boolean[] removed = {false};
+        x.computeIfPresent(node, (k, routes) -> {
+            if (origin == null) {
+                removed[0] = true;
+                return null;
+            }
+            removed[0] = (routes.remove(origin) != null);
+            return (routes.isEmpty() ? null : routes);
+        });
+        return removed[0];
+    }
+
+
+
+    /* 
+     * Interest in a room that we can announce to a neighbour: The origins we have routes to 
+     * (and ourselves if we have subscribers), with the distance from us. Routes learned from 
+     * the neighbour itself, or that would pass maxhops, are left out. 
+     */
+    private Map<String, Integer> interest(String node, String room) {
+        Map<String, Integer> res = new HashMap<String, Integer>();
+        PubSub.Room rm = _psub.getRoom(room);
+        if (rm == null || !rm.bridged)
+            return res;
+        if (_psub.hasLocalReceivers(rm))
+            res.put(_nodeid, 0);
+        Map<String, Map<String, Route>> x = _remote.get(room);
+        if (x != null)
+            for (Map.Entry<String, Map<String, Route>> n : x.entrySet())
+                if (!n.getKey().equals(node))
+                    for (Map.Entry<String, Route> r : n.getValue().entrySet())
+                        if (!r.getKey().equals(node) && r.getValue().hops + 1 < _maxHops)
+                            res.merge(r.getKey(), r.getValue().hops + 1, Math::min);
+        return res;
+    }
+
+
+
+    /**
+     * Called by PubSub when a message is posted locally to a bridged room.
+     */
+    public void forward(String room, String msg, boolean obj, double[] pos) {
+        if (!hasRemoteInterest(room))
+            return;
+        Message m = new Message();
+        m.type = "PUT";
+        m.room = room;
+        m.msg = msg;
+        m.obj = obj;
+        m.pos = pos;
+        m.origin = _nodeid;
+        m.epoch = _epoch;
+        m.seq = _seq.incrementAndGet();
+        seen(m);
+        send(m, null);
+    }
+
+
+
+    /**
+     * Called by PubSub when local subscribers to a bridged room may have changed.
+     * Tell neighbours if our interest in the room has changed.
+     */
+    public void update(String room) {
+        for (String node : _api.getNodes())
+            announce(node, room);
+    }
+
+
+
+    /* 
+     * Tell a neighbour about our interest in a room, if it has changed. Messages are queued 
+     * with the lock held, so that they are sent in the same order as the changes. 
+     */
+    private void announce(String node, String room) {
+        Map<String, Integer> want = interest(node, room);
+        synchronized (_announced) {
+            Map<String, Map<String, Integer>> a = _announced.computeIfAbsent(node, k -> new HashMap<>());
+            Map<String, Integer> had = (want.isEmpty() ? a.remove(room) : a.put(room, want));
+            if (had == null)
+                had = Map.of();
+            for (Map.Entry<String, Integer> e : want.entrySet())
+                if (!e.getValue().equals(had.get(e.getKey())))
+                    sendTo(node, new Message("INTEREST", List.of(room), e.getKey(), e.getValue()));
+            for (String origin : had.keySet())
+                if (!want.containsKey(origin))
+                    sendTo(node, new Message("NOINTEREST", List.of(room), origin, 0));
+        }
+    }
+
+
+
+    /* Re-announce interest to all neighbours, and expire interest that is not refreshed */
+    private void refresh() {
+        try {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Map<String, Map<String, Route>>> e : _remote.entrySet()) {
+                boolean[] expired = {false};
+                for (String node : e.getValue().keySet())
+                    e.getValue().computeIfPresent(node, (k, routes) -> {
+                        expired[0] |= routes.values().removeIf(r -> r.expires < now);
+                        return (routes.isEmpty() ? null : routes);
+                    });
+                if (expired[0])
+                    update(e.getKey());
+            }
+
+            /* Rooms are grouped by origin and distance, one message for each group */
+            for (String node : _api.getNodes()) {
+                Map<Map.Entry<String, Integer>, List<String>> groups = new HashMap<>();
+                for (String room : _psub.bridgedRooms()) {
+                    announce(node, room);
+                    synchronized (_announced) {
+                        Map<String, Integer> a = _announced.get(node).get(room);
+                        if (a != null)
+                            for (Map.Entry<String, Integer> o : a.entrySet())
+                                groups.computeIfAbsent(Map.entry(o.getKey(), o.getValue()), k -> new ArrayList<String>())
+                                    .add(room);
+                    }
+                }
+                for (Map.Entry<Map.Entry<String, Integer>, List<String>> g : groups.entrySet())
+                    sendTo(node, new Message("INTEREST", g.getValue(), g.getKey().getKey(), g.getKey().getValue()));
+            }
+        }
+        catch (Exception e) {
+            _conf.log().warn("PubSubBridge", "Refresh failed: "+e);
+        }
+    }
+
+
+
+    /* Handle message from neighbour node */
+    private void recv(String nodeid, Message m) {
+        if (_closed || m == null || m.type == null || nodeid == null)
+            return;
+        switch (m.type) {
+            case "INTEREST":
+                if (m.rooms == null) {
+                    _conf.log().warn("PubSubBridge", "INTEREST without rooms from "+nodeid);
+                    return;
+                }
+                /* Older nodes do not give the origin. It is then the sender itself */
+                String origin = (m.origin == null ? nodeid : m.origin);
+                
+                /* Our own interest coming back through a cycle, or too far away */
+                if (origin.equals(_nodeid) || m.hops < 0 || m.hops >= _maxHops)
+                    return;
+                Route r = new Route(m.hops, System.currentTimeMillis() + 3 * _refresh);
+                for (String room : m.rooms) {
+                    if (room == null)
+                        continue;
+                    Route prev = addRoute(room, nodeid, origin, r);
+                    if (prev == null || prev.hops != r.hops)
+                        /* Propagate to the other neighbours */
+                        update(room);
+                }
+                break;
+
+            case "NOINTEREST":
+                if (m.rooms == null) {
+                    _conf.log().warn("PubSubBridge", "NOINTEREST without rooms from "+nodeid);
+                    return;
+                }
+                for (String room : m.rooms)
+                    if (room != null && removeRoute(room, nodeid, m.origin))
+                        update(room);
+                break;
+
+            case "PUT":
+                if (m.room == null || m.origin == null || m.origin.equals(_nodeid) || !seen(m))
+                    return;
+                PubSub.Room rm = _psub.getRoom(m.room);
+                if (rm == null || !rm.bridged)
+                    return;
+                Object obj = null;
+                if (m.obj)
+                    /* Decode it as the message class of the room, so that conflation keys work */
+                    obj = ServerBase.fromJson(m.msg, rm.msgClass != null ? rm.msgClass : JsonNode.class);
+                _psub.putLocal(rm, m.msg, obj, m.pos);
+                if (++m.hops < _maxHops)
+                    send(m, nodeid);
+                break;
+
+            default:
+                _conf.log().warn("PubSubBridge", "Unknown message type from "+nodeid+": "+m.type);
+        }
+    }
+
+
+
+    /* Register message as seen. Return false if it was seen already */
+    private boolean seen(Message m) {
+        synchronized (_seen) {
+            return _seen.add(m.origin + ":" + m.epoch + ":" + m.seq);
+        }
+    }
+
+
+
+    /* Send message to interested neighbours, except the one it came from */
+    private void send(Message m, String except) {
+        Map<String, Map<String, Route>> x = _remote.get(m.room);
+        if (x == null)
+            return;
+        for (String node : x.keySet())
+            if (!node.equals(except))
+                sendTo(node, m);
+    }
+
+
+
+    private void sendTo(String node, Message m) {
+        if (_closed)
+            return;
+        try {
+            _out.execute( () -> {
+                if (!_api.put(node, m))
+                    _conf.log().debug("PubSubBridge", "Cannot send to node: "+node);
+            });
+        }
+        catch (RejectedExecutionException e) {
+            /* The bridge was closed after the check above. Drop the message */
+        }
+    }
+
+}
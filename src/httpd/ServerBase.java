@@ -32,6 +32,7 @@ import com.mindprod.base64.Base64;
 import java.util.concurrent.locks.*; 
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.jsontype.NamedType;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 
 
 /*
@@ -66,6 +67,9 @@ public abstract class ServerBase
       /* Jackson JSON mapper */ 
    protected final static ObjectMapper mapper = new ObjectMapper();
    
+      /* Jackson CBOR mapper (for binary websocket protocol) */ 
+   protected final static ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+   
    
    /** Serialize object to JSON */
    public static String toJson(Object obj) 
@@ -102,9 +106,47 @@ public abstract class ServerBase
         }
     }
     
+    /** Serialize object to CBOR */
+    public static byte[] serializeCbor(Object obj) {
+        try {
+            cborMapper.setDateFormat(isodf);
+            return cborMapper.writeValueAsBytes(obj);
+        }
+        catch (Exception e) {
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+    
+    
+    /** Deserialize CBOR to a tree. It can then be serialized to JSON or CBOR */
+    public static JsonNode deserializeCbor(byte[] data, int offset, int len) {
+        try {
+            return cborMapper.readTree(data, offset, len);
+        }
+        catch (Exception e) {
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+    
+    
+    /** Deserialize object of the given class from CBOR */
+    public static Object deserializeCbor(byte[] data, int offset, int len, Class cls) {
+        try {
+            return cborMapper.readValue(data, offset, len, cls);
+        }
+        catch (Exception e) {
+            System.out.println(e.getMessage());
+            return null;
+        }
+    }
+    
+    
     /** Add a subtype to be used in JSON mapper. */
     public static void addSubtype(Class type, String name) {
         mapper.registerSubtypes(new NamedType(type, name));
+        cborMapper.registerSubtypes(new NamedType(type, name));
     }
     
     
@@ -74,11 +74,25 @@ public class Services extends ServerBase {
                 gl.add(new GroupInfo(g.getIdent(), g.getName(), 
                   groupAllowed(g, u,false) ));
             
-            wServer().pubSub().createRoom("auth:"+uid, null);
+            /* Only the user may get the messages of this room, also through a pattern */
+            wServer().pubSub().createUserRoom("auth:"+uid, uid, null, true);
             ctx.json(gl); 
         });
         
         
+        protect("/pubsub/stats", "admin");
+        
+        /******************************************
+         * Get traffic counters of PubSub rooms 
+         * and clients. 
+         ******************************************/
+         
+        a.get("/pubsub/stats", ctx -> {
+            PubSub ps = wServer().pubSub();
+            ctx.json(new TrafficStats.Report(ps.roomStats(), ps.clientStats())); 
+        });
+        
+        
     }
     
 
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+
+/**
+ * Grid index of lat/lon bounding boxes. The world is divided into cells of a
+ * given size (degrees), and each box is registered in the cells it overlaps.
+ * Finding the boxes that contain a point only looks at the cell of the point,
+ * so the cost depends on the number of boxes in that cell, not on the total.
+ *
+ * Boxes that overlap very many cells (zoomed-out views) are kept in a separate
+ * list that is checked for every point, instead of being registered in each cell.
+ * Lookups are lock-free. Updates are synchronized.
+ */
+
+public class SpatialGrid<T> {
+
+    /**
+     * Bounding box. If minLon > maxLon, the box crosses the 180th meridian. Longitudes
+     * outside -180..180 (e.g. from a map that is scrolled around the world) are
+     * normalized, and a box that is 360 degrees wide or more covers all longitudes.
+     */
+    public static class Box {
+        public final double minLat, minLon, maxLat, maxLon;
+
+        public Box(double minlat, double minlon, double maxlat, double maxlon) {
+            minLat = Math.max(minlat, -90);
+            maxLat = Math.min(maxlat, 90);
+            if (maxlon - minlon >= 360) {
+                minLon = -180;
+                maxLon = 180;
+            }
+            else {
+                /* minLon in -180..180 (exclusive), maxLon in -180 (exclusive)..180 */
+                minLon = wrap(minlon);
+                maxLon = -wrap(-maxlon);
+            }
+        }
+
+        public boolean contains(double lat, double lon) {
+            if (lat < minLat || lat > maxLat)
+                return false;
+            lon = normalize(lon);
+            if (minLon <= maxLon)
+                return lon >= minLon && lon <= maxLon;
+            return lon >= minLon || lon <= maxLon;
+        }
+
+        public String toString()
+            { return "Box["+minLat+","+minLon+" - "+maxLat+","+maxLon+"]"; }
+    }
+
+
+
+    /* Longitude wrapped into -180..180 (exclusive) */
+    private static double wrap(double lon)
+        { return lon - 360 * Math.floor((lon + 180) / 360); }
+
+    /* Longitude wrapped into -180..180 if it is outside */
+    private static double normalize(double lon)
+        { return (lon < -180 || lon > 180 ? wrap(lon) : lon); }
+
+
+    private final double _cellSize;
+    private final int _ncols;
+    private final int _maxCells;
+
+    /* Cell number -> boxes overlapping the cell */
+    private final Map<Long, Map<T, Box>> _cells = new ConcurrentHashMap<Long, Map<T, Box>>();
+
+    /* Boxes that overlap too many cells to be registered in each */
+    private final Map<T, Box> _wide = new ConcurrentHashMap<T, Box>();
+
+    /* Box of each element */
+    private final Map<T, Box> _boxes = new ConcurrentHashMap<T, Box>();
+
+
+
+    /**
+     * @param cellSize Size of cells (degrees).
+     * @param maxCells Max number of cells a box is registered in. Larger boxes are
+     *   checked for every lookup.
+     */
+    public SpatialGrid(double cellSize, int maxCells) {
+        _cellSize = cellSize;
+        _ncols = (int) Math.ceil(360 / cellSize);
+        _maxCells = maxCells;
+    }
+
+
+
+    private int row(double lat)
+        { return (int) Math.floor((Math.max(-90, Math.min(90, lat)) + 90) / _cellSize); }
+
+    /* Column of a longitude. 180 is in the last column */
+    private int col(double lon)
+        { return Math.min((int) Math.floor((normalize(lon) + 180) / _cellSize), _ncols - 1); }
+
+    private long cell(int row, int col)
+        { return (long) row * _ncols + col; }
+
+
+
+    /* 
+     * Number of columns that a box overlaps, starting at col(minLon). A box that crosses 
+     * the 180th meridian wraps around, and may overlap all columns. 
+     */
+    private int nCols(Box b) {
+        int c0 = col(b.minLon), c1 = col(b.maxLon);
+        if (b.minLon <= b.maxLon)
+            return c1 - c0 + 1;
+        return Math.min(_ncols - c0 + c1 + 1, _ncols);
+    }
+
+
+    /* Apply f to the cells that a box overlaps. */
+    private void forCells(Box b, java.util.function.LongConsumer f) {
+        int c0 = col(b.minLon), ncols = nCols(b);
+        for (int r = row(b.minLat); r <= row(b.maxLat); r++)
+            for (int i = 0; i < ncols; i++)
+                f.accept(cell(r, (c0 + i) % _ncols));
+    }
+
+
+    /* Number of cells that a box overlaps */
+    private long nCells(Box b)
+        { return (long) nCols(b) * (row(b.maxLat) - row(b.minLat) + 1); }
+
+
+
+    /** Set the box of an element. It replaces any previous box */
+    public synchronized void put(T x, Box b) {
+        remove(x);
+        _boxes.put(x, b);
+        if (nCells(b) > _maxCells)
+            _wide.put(x, b);
+        else
+            forCells(b, c -> _cells.computeIfAbsent(c, k -> new ConcurrentHashMap<T, Box>()).put(x, b));
+    }
+
+
+
+    /** Remove an element */
+    public synchronized void remove(T x) {
+        Box b = _boxes.remove(x);
+        if (b == null)
+            return;
+        if (_wide.remove(x) != null)
+            return;
+        forCells(b, c -> {
+            Map<T, Box> m = _cells.get(c);
+            if (m != null) {
+                m.remove(x);
+                if (m.isEmpty())
+                    _cells.remove(c);
+            }
+        });
+    }
+
+
+
+    /** Return true if the element has a box */
+    public boolean contains(T x)
+        { return _boxes.containsKey(x); }
+
+
+    /** Return the box of an element. null if none */
+    public Box get(T x)
+        { return _boxes.get(x); }
+
+
+    /** Number of elements */
+    public int size()
+        { return _boxes.size(); }
+
+
+
+    /** Add the elements whose box contains the point to res */
+    public void match(double lat, double lon, Collection<T> res) {
+        Map<T, Box> m = _cells.get(cell(row(lat), col(lon)));
+        if (m != null)
+            for (Map.Entry<T, Box> e : m.entrySet())
+                if (e.getValue().contains(lat, lon))
+                    res.add(e.getKey());
+        for (Map.Entry<T, Box> e : _wide.entrySet())
+            if (e.getValue().contains(lat, lon))
+                res.add(e.getKey());
+    }
+}
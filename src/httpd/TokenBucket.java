@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import no.polaric.core.*;
+
+
+
+/**
+ * Token bucket for rate limiting. The bucket holds up to 'burst' tokens and is
+ * refilled with 'rate' tokens per second. Each operation takes one token, and is
+ * not allowed if the bucket is empty.
+ */
+
+public class TokenBucket {
+
+    private final double _rate;
+    private final double _burst;
+    private double _tokens;
+    private long _last = System.nanoTime();
+
+
+
+    /**
+     * @param rate Tokens per second.
+     * @param burst Max number of tokens.
+     */
+    public TokenBucket(double rate, double burst) {
+        _rate = rate;
+        _burst = Math.max(burst, 1);
+        _tokens = _burst;
+    }
+
+
+
+    /**
+     * Create a token bucket from configuration properties 'prefix.rate' and
+     * 'prefix.burst'. Return null if rate is 0 (no limit).
+     */
+    public static TokenBucket fromConfig(ServerConfig conf, String prefix, int rate, int burst) {
+        int r = conf.getIntProperty(prefix+".rate", rate);
+        if (r <= 0)
+            return null;
+        return new TokenBucket(r, conf.getIntProperty(prefix+".burst", burst));
+    }
+
+
+
+    /** Take a token if available. Return false if not */
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        _tokens = Math.min(_burst, _tokens + (now - _last) * _rate / 1e9);
+        _last = now;
+        if (_tokens < 1)
+            return false;
+        _tokens -= 1;
+        return true;
+    }
+
+
+
+    /** Give back a token that was taken, e.g. when another limit did not allow the operation */
+    public synchronized void refund()
+        { _tokens = Math.min(_burst, _tokens + 1); }
+
+}
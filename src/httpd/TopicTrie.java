@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+
+/**
+ * Trie of topic patterns. Topics are hierarchical names where the levels are
+ * separated by ':' or '/', e.g. 'notify:SYSTEM' or 'tracker/LA7ECA/pos'. In a
+ * pattern, a '+' level matches exactly one level and a '*' level (last) matches
+ * one or more levels. For example, 'notify:*' matches 'notify:SYSTEM' and
+ * 'tracker/+/pos' matches 'tracker/LA7ECA/pos'.
+ *
+ * Finding the subscribers of a topic takes time proportional to the depth of
+ * the topic (and the number of wildcards along the path), not to the number of
+ * subscriptions. Lookups are lock-free. Updates are synchronized.
+ */
+
+public class TopicTrie<T> {
+
+    public static final String ANY = "+";
+    public static final String REST = "*";
+
+
+    private static class Node<T> {
+        final Map<String, Node<T>> children = new ConcurrentHashMap<String, Node<T>>();
+        final Set<T> subs = ConcurrentHashMap.newKeySet();
+
+        boolean isEmpty()
+            { return children.isEmpty() && subs.isEmpty(); }
+    }
+
+
+    private final Node<T> _root = new Node<T>();
+    private volatile int _size = 0;
+
+
+
+    /** Split a topic into levels */
+    public static List<String> levels(String topic) {
+        List<String> res = new ArrayList<String>(4);
+        int start = 0;
+        for (int i=0; i<topic.length(); i++) {
+            char c = topic.charAt(i);
+            if (c == ':' || c == '/') {
+                res.add(topic.substring(start, i));
+                start = i+1;
+            }
+        }
+        res.add(topic.substring(start));
+        return res;
+    }
+
+
+    /** Return true if the topic has wildcard levels */
+    public static boolean isPattern(String topic) {
+        for (String x : levels(topic))
+            if (x.equals(ANY) || x.equals(REST))
+                return true;
+        return false;
+    }
+
+
+
+    /** Return true if there are no subscriptions */
+    public boolean isEmpty()
+        { return _size == 0; }
+
+
+    /** Number of subscriptions */
+    public int size()
+        { return _size; }
+
+
+    /* Number of nodes below the root. Empty nodes are pruned, so this follows the subscriptions */
+    int nNodes()
+        { return nNodes(_root) - 1; }
+
+
+    private int nNodes(Node<T> n) {
+        int res = 1;
+        for (Node<T> x : n.children.values())
+            res += nNodes(x);
+        return res;
+    }
+
+
+
+    /** Add a subscription to a pattern */
+    public synchronized boolean add(String pattern, T x) {
+        Node<T> n = _root;
+        for (String lvl : levels(pattern))
+            n = n.children.computeIfAbsent(lvl, k -> new Node<T>());
+        boolean added = n.subs.add(x);
+        if (added)
+            _size++;
+        return added;
+    }
+
+
+
+    /** Remove a subscription to a pattern. Nodes that are no longer used are removed */
+    public synchronized boolean remove(String pattern, T x) {
+        List<String> lv = levels(pattern);
+        List<Node<T>> path = new ArrayList<Node<T>>(lv.size()+1);
+        Node<T> n = _root;
+        path.add(n);
+        for (String lvl : lv) {
+            n = n.children.get(lvl);
+            if (n == null)
+                return false;
+            path.add(n);
+        }
+        boolean removed = n.subs.remove(x);
+        if (removed)
+            _size--;
+
+        /* Prune empty nodes, bottom-up */
+        for (int i = lv.size(); i > 0 && path.get(i).isEmpty(); i--)
+            path.get(i-1).children.remove(lv.get(i-1));
+        return removed;
+    }
+
+
+
+    /** Add the subscribers of patterns that match the topic to res */
+    public void match(String topic, Collection<T> res) {
+        if (isEmpty())
+            return;
+        match(_root, levels(topic), 0, res);
+    }
+
+
+    private void match(Node<T> n, List<String> lv, int i, Collection<T> res) {
+        if (i == lv.size()) {
+            res.addAll(n.subs);
+            return;
+        }
+        /* '*' matches the rest of the topic */
+        Node<T> x = n.children.get(REST);
+        if (x != null)
+            res.addAll(x.subs);
+
+        x = n.children.get(ANY);
+        if (x != null)
+            match(x, lv, i+1, res);
+
+        x = n.children.get(lv.get(i));
+        if (x != null)
+            match(x, lv, i+1, res);
+    }
+}
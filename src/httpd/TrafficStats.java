@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import no.polaric.core.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+
+
+/**
+ * Traffic counters for a PubSub room. Counters are LongAdders, so that
+ * threads posting to the same room don't contend much. Fan-out latency (the time
+ * it takes to queue a message for all receivers) is kept in a histogram with
+ * buckets of powers of two microseconds.
+ */
+
+public class TrafficStats {
+
+    /* Bucket i counts latencies less than 2^i microseconds. The last one counts the rest */
+    public static final int NBUCKETS = 24;
+
+    /* Min time (ms) between samples for computing the message rate */
+    private static final long RATE_PERIOD = 10000;
+
+
+    /** Snapshot of the counters of a room */
+    public static class Info {
+        public String room;
+        public int subscribers;
+        public long messages;       // Number of messages posted
+        public double rate;         // Messages per second (recent)
+        public long delivered;      // Number of messages queued for clients
+        public long dropped;        // Number of messages dropped because of full queues
+        public long rejected;       // Number of posts from clients rejected by rate limits
+        public long bytesOut;       // Bytes queued for clients (text form)
+        public long latency50;      // Median fan-out latency (upper bound, microseconds)
+        public long latency99;      // 99th percentile fan-out latency (upper bound, microseconds)
+        public long[] latency;      // Fan-out latency histogram
+        public Info() {}
+    }
+
+
+    /** Snapshot of the counters of a client */
+    public static class ClientInfo {
+        public String id;
+        public String userid;
+        public Date created;
+        public boolean mobile, binary;
+        public long nIn, nOut, dropped, bytesOut, rejected;
+        public int queued;
+        public long pace, latency;  // Min time between writes and average send latency (ms), mobile profile
+        public ClientInfo() {}
+    }
+
+
+    /** Counters of rooms and clients */
+    public static class Report {
+        public List<Info> rooms;
+        public List<ClientInfo> clients;
+        public Report() {}
+        public Report(List<Info> r, List<ClientInfo> c)
+            { rooms=r; clients=c; }
+    }
+
+
+    private final LongAdder _msgs = new LongAdder();
+    private final LongAdder _delivered = new LongAdder();
+    private final LongAdder _dropped = new LongAdder();
+    private final LongAdder _bytes = new LongAdder();
+    private final LongAdder _rejected = new LongAdder();
+    private final LongAdder[] _latency = new LongAdder[NBUCKETS];
+
+    /* Last sample for computing the rate */
+    private long _sampleTime = System.currentTimeMillis();
+    private long _sampleMsgs = 0;
+    private double _rate = 0;
+
+
+
+    public TrafficStats() {
+        for (int i=0; i<NBUCKETS; i++)
+            _latency[i] = new LongAdder();
+    }
+
+
+
+    /**
+     * Count a message posted to the room.
+     * @param size Size of the message (bytes).
+     * @param res Number of clients it was delivered to and number of drops.
+     * @param nanos Time it took to queue it for all the receivers.
+     */
+    public void count(int size, ServerConfig.Delivery res, long nanos) {
+        _msgs.increment();
+        _delivered.add(res.delivered);
+        _dropped.add(res.dropped);
+        _bytes.add((long) size * res.delivered);
+        _latency[bucket(nanos / 1000)].increment();
+    }
+
+
+
+    /** Count a post from a client that was rejected */
+    public void reject()
+        { _rejected.increment(); }
+
+
+
+    /* Bucket for a latency in microseconds */
+    private static int bucket(long micros) {
+        int b = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(b, NBUCKETS-1);
+    }
+
+
+    public long messages()  { return _msgs.sum(); }
+    public long delivered() { return _delivered.sum(); }
+    public long dropped()   { return _dropped.sum(); }
+    public long bytesOut()  { return _bytes.sum(); }
+    public long rejected()  { return _rejected.sum(); }
+
+
+
+    /** Messages per second, computed over the last sample period (at least 10 seconds) */
+    public synchronized double rate() {
+        long now = System.currentTimeMillis();
+        if (now - _sampleTime >= RATE_PERIOD) {
+            long n = _msgs.sum();
+            _rate = (n - _sampleMsgs) * 1000.0 / (now - _sampleTime);
+            _sampleMsgs = n;
+            _sampleTime = now;
+        }
+        return _rate;
+    }
+
+
+
+    /** Fan-out latency histogram. Element i is the number of latencies less than 2^i microseconds */
+    public long[] latency() {
+        long[] res = new long[NBUCKETS];
+        for (int i=0; i<NBUCKETS; i++)
+            res[i] = _latency[i].sum();
+        return res;
+    }
+
+
+
+    /** Upper bound (microseconds) of the given percentile (0-100) of the fan-out latency */
+    public static long percentile(long[] hist, double p) {
+        long total = 0;
+        for (long x : hist)
+            total += x;
+        if (total == 0)
+            return 0;
+        long limit = (long) Math.ceil(total * p / 100);
+        long n = 0;
+        for (int i=0; i<NBUCKETS; i++) {
+            n += hist[i];
+            if (n >= limit)
+                return 1L << i;
+        }
+        return 1L << (NBUCKETS-1);
+    }
+
+
+
+    /** Snapshot of the counters */
+    public Info info(String room, int subscribers) {
+        Info x = new Info();
+        x.room = room;
+        x.subscribers = subscribers;
+        x.messages = messages();
+        x.rate = rate();
+        x.delivered = delivered();
+        x.dropped = dropped();
+        x.bytesOut = bytesOut();
+        x.rejected = rejected();
+        x.latency = latency();
+        x.latency50 = percentile(x.latency, 50);
+        x.latency99 = percentile(x.latency, 99);
+        return x;
+    }
+}
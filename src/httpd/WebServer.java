@@ -21,6 +21,7 @@ import no.polaric.core.*;
 import no.polaric.core.auth.*;
 import io.javalin.Javalin;
 import io.javalin.http.staticfiles.Location;
+import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.pac4j.core.config.Config;
 import org.pac4j.javalin.*;
 import java.util.*;
@@ -38,6 +39,8 @@ public abstract class WebServer implements ServerConfig.Web {
     private AuthService _auth;
     private PubSub _psub;
     private String _psuri;
+    private ServletContextHandler _sctx;
+    private DeflateExtension.Settings _deflate;
     protected ServerConfig _conf;
     
     private long _nRequests = 0;
@@ -73,7 +76,12 @@ public abstract class WebServer implements ServerConfig.Web {
                     sf.directory = stdir;   
                     sf.location = Location.EXTERNAL;
                 });
+            config.jetty.modifyServletContextHandler( h -> {_sctx = h;} );
         }).start(_port);
+        
+        /* Websocket compression. See DeflateExtension for configuration */
+        if (_sctx != null)
+            _deflate = DeflateExtension.install(conf, _sctx.getServletContext());
     }
     
     
@@ -97,6 +105,8 @@ public abstract class WebServer implements ServerConfig.Web {
         _psub.start(_psuri);
         pubSub().createRoom("notify:SYSTEM", false, false, false, true, ServerConfig.Notification.class);
         pubSub().createRoom("notify:ADMIN", false, false, false, true, ServerConfig.Notification.class);
+        _psub.getRoom("notify:SYSTEM").priority = WsFrame.PRIO_HIGH;
+        _psub.getRoom("notify:ADMIN").priority = WsFrame.PRIO_HIGH;
         
         /* Register handlers for open and close of login-sessions. Note that there may be 
          * more than one login-session per user-session, but we need to ensure that there is only 
@@ -109,6 +119,8 @@ public abstract class WebServer implements ServerConfig.Web {
     /** Stop the webserver and services */
     public void stop() throws Exception {
         _app.stop();
+        if (_psub != null)
+            _psub.stop();
     }  
     
     
@@ -139,9 +151,14 @@ public abstract class WebServer implements ServerConfig.Web {
     
     
     /** Number of http requests since startup. */
-    public long nHttpReq() 
+    public long nHttpReq()
         { return _nRequests; }
-    
+
+
+    /** Websocket compression settings and statistics. null if compression is not used. */
+    public DeflateExtension.Settings deflate()
+        { return _deflate; }
+
     
     /** Return the user-database */
     public UserDb userDb()
@@ -166,20 +183,13 @@ public abstract class WebServer implements ServerConfig.Web {
     /**
      * Return a set of logged in users. The set is ordered.  
      */
-    public SortedSet<String> loginUsers() {
-        SortedSet<String> u = new TreeSet<String>();
-        for (WsNotifier.Client c :_psub.clients())
-            if (c.userName() != null)
-                u.add(c.userName());
-        return u;
-    }
+    public SortedSet<String> loginUsers() 
+        { return _psub.loginUsers(); }
 
     
     /** Return true if the given userid is logged on to the system. */
-    public boolean hasLoginUser(String user) {
-        SortedSet<String> uu = loginUsers(); 
-        return uu.contains(user);
-    }
+    public boolean hasLoginUser(String user) 
+        { return _psub.hasLoginUser(user); }
     
     
     /**
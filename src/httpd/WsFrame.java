@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+
+
+/**
+ * Outgoing websocket text frame.
+ * The text is encoded to UTF-8 once, when the frame is created. The encoded
+ * buffer is read-only and can be shared by all receivers of the frame.
+ *
+ * A frame may also have a binary form, for clients using the binary protocol
+ * (see doc/pubsub.md). It is encoded the first time it is needed, and then shared
+ * the same way.
+ */
+
+public class WsFrame {
+
+    /* Batch frames start with this, and each message is preceded by RS */
+    public static final String BATCH_PREFIX = "BATCH";
+    public static final String SEQ_PREFIX = "SEQ";
+    public static final byte RS = 0x1e;
+
+    /* Binary protocol. Types of frames from server to client */
+    public static final byte BIN_MSG   = 0x01;   // room-id, CBOR encoded object
+    public static final byte BIN_ROOM  = 0x02;   // room-id, room name
+    public static final byte BIN_BATCH = 0x03;   // (length, frame)*
+    public static final byte BIN_TEXT  = 0x04;   // room-id, UTF-8 text
+    public static final byte BIN_SEQ   = 0x05;   // seq, frame
+
+    /* Priority classes. Frames of higher classes are sent first (see FrameQueue) */
+    public static final int PRIO_HIGH   = 0;
+    public static final int PRIO_NORMAL = 1;
+    public static final int PRIO_LOW    = 2;
+
+    /* Binary protocol. Types of frames from client to server */
+    public static final byte BIN_SUBSCRIBE   = 0x11;  // room name
+    public static final byte BIN_UNSUBSCRIBE = 0x12;  // room name
+    public static final byte BIN_PUT         = 0x13;  // room-id, CBOR encoded object
+    public static final byte BIN_VIEW        = 0x14;  // room-id, [minlat, minlon, maxlat, maxlon] (float64)
+    public static final byte BIN_RES         = 0x15;  // room-id, [min-distance (float64), min-interval (varint)]
+
+    private final ByteBuffer _buf;
+    private String _text;
+    private String _key;
+    private int _window = 0;
+    private int _prio = PRIO_NORMAL;
+    private boolean _control = false;
+    private int _moffset = 0;
+    private final long _time = System.currentTimeMillis();
+    private boolean _deflate = true;
+    private double _lat = Double.NaN, _lon = Double.NaN;
+
+    /* Binary form */
+    private ByteBuffer _bin;
+    
+    /* Sequence number in the room. 0 if none. Sequenced forms are encoded when asked for */
+    private long _seq = 0;
+    private ByteBuffer _seqText, _seqBin;
+
+
+    /** Create a frame from a text */
+    public WsFrame(String text) {
+        _text = (text == null ? "" : text);
+        _buf = ByteBuffer.wrap(_text.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+
+    /**
+     * Create a frame from a prefix and a message. The content will be 'prefix,msg'.
+     * The parts are encoded directly into the buffer without concatenating strings.
+     */
+    public WsFrame(String prefix, String msg) {
+        byte[] p = prefix.getBytes(StandardCharsets.UTF_8);
+        byte[] m = (msg == null ? new byte[0] : msg.getBytes(StandardCharsets.UTF_8));
+        byte[] b = new byte[p.length + 1 + m.length];
+        System.arraycopy(p, 0, b, 0, p.length);
+        b[p.length] = ',';
+        System.arraycopy(m, 0, b, p.length+1, m.length);
+        _buf = ByteBuffer.wrap(b).asReadOnlyBuffer();
+        _moffset = p.length + 1;
+    }
+
+
+    /**
+     * Create a frame with a conflation key. If a receiver already has a frame with the 
+     * same key waiting to be sent, the waiting frame is replaced with this one. 
+     */
+    public WsFrame(String prefix, String msg, String key) {
+        this(prefix, msg);
+        _key = key;
+    }
+
+
+    private WsFrame(byte[] b) {
+        _buf = ByteBuffer.wrap(b).asReadOnlyBuffer();
+    }
+
+
+    private WsFrame(byte[] b, byte[] bin) {
+        this(b);
+        _bin = ByteBuffer.wrap(bin).asReadOnlyBuffer();
+    }
+
+
+    /**
+     * Create a control frame, e.g. a reply to a command (RESUME, RESYNC, REJECTED). 
+     * It has high priority and is never dropped when the queue of the client is full.
+     */
+    public static WsFrame control(String text) {
+        WsFrame f = new WsFrame(text);
+        f._prio = PRIO_HIGH;
+        f._control = true;
+        return f;
+    }
+
+
+    /**
+     * Create a control frame. If replace is true, the frame has a conflation key, so
+     * if the same text is already waiting to be sent to a client, it is not queued
+     * again. For replies that may be repeated many times, e.g. REJECTED.
+     */
+    public static WsFrame control(String text, boolean replace) {
+        WsFrame f = control(text);
+        if (replace)
+            /* Keys of room messages never start with NUL */
+            f._key = "\0" + f._text;
+        return f;
+    }
+
+
+    /** Create a binary control frame that tells the client the id of a room */
+    public static WsFrame roomInfo(int roomId, String name) {
+        byte[] n = name.getBytes(StandardCharsets.UTF_8);
+        byte[] b = new byte[1 + varintSize(roomId) + n.length];
+        b[0] = BIN_ROOM;
+        int i = putVarint(b, 1, roomId);
+        System.arraycopy(n, 0, b, i, n.length);
+        WsFrame f = new WsFrame(new byte[0], b);
+        f._prio = PRIO_HIGH;
+        f._control = true;
+        return f;
+    }
+
+
+    /**
+     * Give the frame a binary form. The message (the part after the prefix) is
+     * sent with the room id instead of the room name. It is encoded here, before
+     * the frame is given to any client.
+     * @param roomId Id of the room.
+     * @param cbor CBOR encoded object. If null, the message is sent as text.
+     */
+    public void setBinary(int roomId, byte[] cbor) {
+        byte[] m = cbor;
+        byte type = BIN_MSG;
+        if (m == null) {
+            /* Send the text message */
+            type = BIN_TEXT;
+            ByteBuffer mb = _buf.duplicate();
+            mb.position(_moffset);
+            m = new byte[mb.remaining()];
+            mb.get(m);
+        }
+        byte[] b = new byte[1 + varintSize(roomId) + m.length];
+        b[0] = type;
+        int i = putVarint(b, 1, roomId);
+        System.arraycopy(m, 0, b, i, m.length);
+        _bin = ByteBuffer.wrap(b).asReadOnlyBuffer();
+    }
+
+
+    /** Return true if the frame has a binary form */
+    public boolean hasBinary()
+        { return _bin != null; }
+
+
+    /** Return the binary form of the frame, or null if it doesn't have one. */
+    public ByteBuffer binPayload()
+        { return (_bin == null ? null : _bin.duplicate()); }
+
+
+    /** Size of the binary form (bytes). 0 if there is none */
+    public int binSize() {
+        ByteBuffer b = binPayload();
+        return (b == null ? 0 : b.remaining());
+    }
+
+
+    /**
+     * Set the sequence number of the frame in its room. Clients that ask for it get
+     * the number with the message (see payload(boolean) and binPayload(boolean)).
+     */
+    public void setSeq(long seq)
+        { _seq = seq; }
+
+
+    /** Sequence number of the frame in its room. 0 if it has none */
+    public long seq()
+        { return _seq; }
+
+
+    /**
+     * Return the text form of the frame. If seq is true and the frame has a sequence
+     * number, the content is 'SEQ,seq,' followed by the frame.
+     */
+    public synchronized ByteBuffer payload(boolean seq) {
+        if (!seq || _seq <= 0)
+            return payload();
+        if (_seqText == null) {
+            byte[] p = (SEQ_PREFIX+","+_seq+",").getBytes(StandardCharsets.UTF_8);
+            byte[] b = new byte[p.length + size()];
+            System.arraycopy(p, 0, b, 0, p.length);
+            payload().get(b, p.length, size());
+            _seqText = ByteBuffer.wrap(b).asReadOnlyBuffer();
+        }
+        return _seqText.duplicate();
+    }
+
+
+    /** Size of the text form (bytes) */
+    public int size(boolean seq)
+        { return (!seq || _seq <= 0 ? size() : payload(true).remaining()); }
+
+
+    /**
+     * Return the binary form of the frame. If seq is true and the frame has a sequence
+     * number, it is the type (BIN_SEQ), the sequence number (varint) and the frame.
+     */
+    public synchronized ByteBuffer binPayload(boolean seq) {
+        ByteBuffer bin = binPayload();
+        if (!seq || _seq <= 0 || bin == null)
+            return bin;
+        if (_seqBin == null) {
+            byte[] b = new byte[1 + varintSize(_seq) + bin.remaining()];
+            b[0] = BIN_SEQ;
+            int i = putVarint(b, 1, _seq);
+            bin.get(b, i, bin.remaining());
+            _seqBin = ByteBuffer.wrap(b).asReadOnlyBuffer();
+        }
+        return _seqBin.duplicate();
+    }
+
+
+    /** Size of the binary form (bytes). 0 if there is none */
+    public int binSize(boolean seq) {
+        ByteBuffer b = binPayload(seq);
+        return (b == null ? 0 : b.remaining());
+    }
+
+
+    /**
+     * Pack a list of frames into one binary batch frame: The type, followed by the
+     * length (varint) and binary form of each frame. All frames must have a binary form.
+     */
+    public static WsFrame batchBinary(List<WsFrame> frames)
+        { return batchBinary(frames, false); }
+
+
+    /** Pack a list of frames into one binary batch frame. If seq is true, the sequenced forms are used */
+    public static WsFrame batchBinary(List<WsFrame> frames, boolean seq) {
+        int size = 1;
+        for (WsFrame f : frames)
+            size += varintSize(f.binSize(seq)) + f.binSize(seq);
+
+        byte[] b = new byte[size];
+        b[0] = BIN_BATCH;
+        int i = 1;
+        for (WsFrame f : frames) {
+            ByteBuffer fb = f.binPayload(seq);
+            int len = fb.remaining();
+            i = putVarint(b, i, len);
+            fb.get(b, i, len);
+            i += len;
+        }
+        return new WsFrame(new byte[0], b);
+    }
+
+
+    /** Number of bytes needed to encode x as an unsigned varint */
+    public static int varintSize(int x) {
+        int n = 1;
+        while ((x >>>= 7) != 0)
+            n++;
+        return n;
+    }
+
+
+    public static int varintSize(long x) {
+        int n = 1;
+        while ((x >>>= 7) != 0)
+            n++;
+        return n;
+    }
+
+
+    /**
+     * Encode x as an unsigned varint (7 bits per byte, least significant first,
+     * high bit set on all but the last byte). Return the position after it.
+     */
+    public static int putVarint(byte[] b, int pos, int x) {
+        while ((x & ~0x7f) != 0) {
+            b[pos++] = (byte) ((x & 0x7f) | 0x80);
+            x >>>= 7;
+        }
+        b[pos++] = (byte) x;
+        return pos;
+    }
+
+
+    public static int putVarint(byte[] b, int pos, long x) {
+        while ((x & ~0x7fL) != 0) {
+            b[pos++] = (byte) ((x & 0x7f) | 0x80);
+            x >>>= 7;
+        }
+        b[pos++] = (byte) x;
+        return pos;
+    }
+
+
+    /**
+     * Decode an unsigned varint from a buffer. The position of the buffer
+     * is moved past it. Return -1 if it is malformed.
+     */
+    public static int getVarint(ByteBuffer b) {
+        int x = 0;
+        for (int shift = 0; shift < 32 && b.hasRemaining(); shift += 7) {
+            byte v = b.get();
+            x |= (v & 0x7f) << shift;
+            if ((v & 0x80) == 0)
+                return x;
+        }
+        return -1;
+    }
+
+
+    /**
+     * Pack a list of frames into one batch frame. The content is 'BATCH' followed by
+     * each message preceded by a RS (0x1e) character. Any RS characters inside the
+     * messages are replaced by '?', so that they cannot be mistaken for separators.
+     */
+    public static WsFrame batch(List<WsFrame> frames)
+        { return batch(frames, false); }
+
+
+    /** Pack a list of frames into one batch frame. If seq is true, the sequenced forms are used */
+    public static WsFrame batch(List<WsFrame> frames, boolean seq) {
+        byte[] p = BATCH_PREFIX.getBytes(StandardCharsets.UTF_8);
+        int size = p.length;
+        for (WsFrame f : frames)
+            size += 1 + f.size(seq);
+
+        byte[] b = new byte[size];
+        System.arraycopy(p, 0, b, 0, p.length);
+        int i = p.length;
+        for (WsFrame f : frames) {
+            b[i++] = RS;
+            int start = i;
+            int n = f.size(seq);
+            f.payload(seq).get(b, i, n);
+            i += n;
+            for (int j=start; j<i; j++)
+                if (b[j] == RS)
+                    b[j] = '?';
+        }
+        return new WsFrame(b);
+    }
+
+
+    /**
+     * Set the time window (ms) for batching this frame with others to clients that
+     * support batching. 0 means that the client's own setting is used.
+     */
+    public void setBatchWindow(int ms)
+        { _window = ms; }
+
+
+    public int batchWindow()
+        { return _window; }
+
+
+    /**
+     * Set the priority class (PRIO_HIGH, PRIO_NORMAL or PRIO_LOW). Frames of high 
+     * priority are not delayed by batching or pacing. 
+     */
+    public void setPriority(int p)
+        { _prio = p; }
+
+
+    public int priority()
+        { return _prio; }
+
+
+    /** Return true if this is a control frame (see control) */
+    public boolean isControl()
+        { return _control; }
+
+
+    /**
+     * Set to false if the frame is not to be compressed, even if the client
+     * supports compression (e.g. if the content is already compact).
+     */
+    public void setDeflate(boolean d)
+        { _deflate = d; }
+
+
+    public boolean deflate()
+        { return _deflate; }
+
+
+    /** 
+     * Set the position the message is about. Clients that have a view (bounding box) 
+     * only get the message if the position is inside it. 
+     */
+    public void setPosition(double lat, double lon)
+        { _lat = lat; _lon = lon; }
+
+
+    public boolean hasPosition()
+        { return !Double.isNaN(_lat); }
+
+
+    public double lat()
+        { return _lat; }
+
+
+    public double lon()
+        { return _lon; }
+
+
+    /** Conflation key. null if the frame is not to be conflated */
+    public String key()
+        { return _key; }
+
+
+    /**
+     * Return the encoded content. Each call returns a new view of the
+     * shared buffer, so it can be consumed independently by each receiver.
+     */
+    public ByteBuffer payload()
+        { return _buf.duplicate(); }
+
+
+    /** Time when the frame was created (ms since epoch) */
+    public long time()
+        { return _time; }
+
+
+    /** Size of the encoded content (bytes) */
+    public int size()
+        { return _buf.remaining(); }
+
+
+    /** Return the content as a string */
+    public String text() {
+        if (_text == null)
+            _text = StandardCharsets.UTF_8.decode(_buf.duplicate()).toString();
+        return _text;
+    }
+
+
+    public String toString()
+        { return "WsFrame["+size()+"]"; }
+}
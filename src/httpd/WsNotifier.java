@@ -22,23 +22,151 @@ import no.polaric.core.auth.*;
 import io.javalin.Javalin;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import io.javalin.websocket.*; 
 import java.util.function.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Pattern;
+import io.javalin.http.HttpResponseException;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.core.Frame;
+import org.eclipse.jetty.websocket.core.OpCode;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.IteratingCallback;
 
 
 
 
 public abstract class WsNotifier extends ServerBase implements SesNotifier {
     
+    /* Subprotocol for clients using the binary protocol */
+    public static final String BIN_PROTOCOL = "polaric-bin";
+    private static final String PROTOCOL_HEADER = "Sec-WebSocket-Protocol";
+    
    
+    /** 
+     * What to do when the outgoing queue of a client is full.
+     *   DROP_OLDEST - remove the oldest queued message to make room for the new one
+     *   DROP_NEWEST - discard the new message
+     *   DISCONNECT  - close the session of the client
+     */
+    public enum Overflow { DROP_OLDEST, DROP_NEWEST, DISCONNECT }
+    
+    
+    
     /************* Client *************/
     public abstract class Client implements SesNotifier.Client {
     
         protected WsContext _ctx; 
         protected Date _ctime; 
         protected AuthInfo _auth;
-        protected long _nIn, _nOut; 
+        protected final LongAdder _nIn = new LongAdder(), _nOut = new LongAdder(); 
+        protected final LongAdder _nDropped = new LongAdder(), _bytesOut = new LongAdder();
+        protected final LongAdder _nRejected = new LongAdder();
         private   boolean _mobile;
+        private   boolean _binary;
+        private   boolean _seqOk = false;
+        private   boolean _closed = false;
+        
+        /* 
+         * Outgoing queue. Frames are written one at a time, the next one is 
+         * written when the previous write has completed. Sending threads just add
+         * to the queue and are never blocked by a slow client. 
+         * Frames with a conflation key have their latest version in _latest. The 
+         * queue keeps the position of the first one. Frames of higher priority 
+         * classes are sent first, but not so that lower classes are starved. 
+         * Control frames are not dropped, but there can be at most _qsize of them 
+         * (_nControl). 
+         */
+        private final FrameQueue _outq = new FrameQueue(_prioWeights);
+        private Map<String, WsFrame> _latest; 
+        private int _qsize = _queueSize; 
+        private int _qbytes = 0;
+        private int _nControl = 0;
+        private Overflow _overflow = _defOverflow;
+        
+        /* 
+         * Batching of frames. Only used if the client has told that it supports it.
+         * Frames are delayed up to _batchWindow ms and packed into one frame of max
+         * _batchMax bytes. 
+         */
+        private boolean _batchOk = false;
+        private int _batchWindow = 0;
+        private int _batchMax = _defBatchMax;
+        private boolean _flushPending = false;
+        
+        /* 
+         * Pacing of writes (mobile profile). When paced, there is at least _pace ms between 
+         * writes. Meanwhile, frames with a conflation key are coalesced in the queue and 
+         * the others are batched. Other frames are not held back, since waiting would not 
+         * make them fewer or smaller. _pace adapts to the send latency (_latency is a 
+         * moving average, ms) and the queue depth. 
+         */
+        private boolean _paced = false;
+        private long _pace = 0;
+        private double _latency = 0;
+        private long _lastWrite = 0, _writeStart = 0;
+        
+        /* 
+         * Incoming frames. They are handled by the worker pool, one at a time and in 
+         * order for each client, so that websocket I/O threads are not held up.
+         */
+        private final ArrayDeque<Runnable> _inbox = new ArrayDeque<Runnable>();
+        private boolean _inboxActive = false;
+        
+        private final IteratingCallback _flusher = new IteratingCallback() {
+            @Override protected Action process() {
+                WsFrame f;
+                synchronized(Client.this) { 
+                    long now = System.currentTimeMillis();
+                    if (_writeStart > 0) {
+                        /* The last write has completed */
+                        if (_paced)
+                            adaptPace(now - _writeStart);
+                        _writeStart = 0;
+                    }
+                    if (_paced && now - _lastWrite < _pace && mayWait()) {
+                        scheduleFlush(_lastWrite + _pace - now);
+                        return Action.IDLE;
+                    }
+                    f = poll(); 
+                    if (f != null && _batchOk && peek() != null) {
+                        /* 
+                         * Pack as many waiting frames as allowed into one frame. Binary 
+                         * frames and text frames are not packed together.
+                         */
+                        boolean bin = isBinary(f);
+                        List<WsFrame> fl = new ArrayList<WsFrame>();
+                        fl.add(f);
+                        int size = frameSize(f, bin);
+                        WsFrame next; 
+                        while ((next = peek()) != null && isBinary(next) == bin 
+                                && size + frameSize(next, bin) <= _batchMax) {
+                            fl.add(poll());
+                            size += frameSize(next, bin);
+                        }
+                        if (fl.size() > 1)
+                            f = (bin ? WsFrame.batchBinary(fl, _seqOk) : WsFrame.batch(fl, _seqOk));
+                    }
+                    if (f != null)
+                        _writeStart = _lastWrite = now;
+                }
+                if (f == null)
+                    return Action.IDLE;
+                write(f, this);
+                return Action.SCHEDULED;
+            }
+            
+            @Override protected void onCompleteFailure(Throwable cause) {
+                _conf.log().debug("WsNotifier", "Send failed: "+sesId(_ctx)+", "+cause);
+                synchronized(Client.this) { 
+                    clearQueue(); 
+                }
+            }
+        };
         
         
         public Client(WsContext ctx) {
@@ -65,17 +193,383 @@ public abstract class WsNotifier extends ServerBase implements SesNotifier {
         public String host()      { return _ctx.host(); }
         public String uid()       { return _ctx.sessionId(); }
         public Date created()     { return _ctime; }
-        public long nIn()         { return _nIn; }
-        public long nOut()        { return _nOut; }
+        public long nIn()         { return _nIn.sum(); }
+        public long nOut()        { return _nOut.sum(); }
+        public long nDropped()    { return _nDropped.sum(); }
+        public long bytesOut()    { return _bytesOut.sum(); }
+        public long nRejected()   { return _nRejected.sum(); }
         public boolean isMobile() { return _mobile; }
+        
+        /** Return true if the client uses the binary protocol */
+        public boolean isBinary() { return _binary; }
+        
+        
+        /** Set the max size of the outgoing queue and what to do when it is full */
+        public synchronized void setQueue(int size, Overflow ovf) 
+            { _qsize = size; _overflow = ovf; }
+            
+        /** 
+         * Enable batching. The client must support the batch format (see WsFrame.batch). 
+         * @param window Max time (ms) a message can be delayed to be batched with others. 
+         *   If negative, batching is turned off.
+         * @param max Max size (bytes) of a batch. 
+         */
+        public synchronized void setBatching(int window, int max) { 
+            _batchOk = (window >= 0);
+            _batchWindow = window;
+            if (max > 0)
+                _batchMax = max;
+        }
+        
+        public synchronized boolean isBatching()
+            { return _batchOk; }
+            
+            
+        /** 
+         * Send frames with their sequence numbers (if they have one). The client must 
+         * support the sequenced format (see WsFrame.payload(boolean)). 
+         */
+        public synchronized void setSequenced(boolean s)
+            { _seqOk = s; }
+            
+        public synchronized boolean isSequenced()
+            { return _seqOk; }
+            
+            
+        /** 
+         * Use the delivery profile for mobile clients: A smaller outgoing queue, paced writes 
+         * of updates that can be coalesced or batched, adapting to the link, and a longer 
+         * batch window (if the client accepts batches). 
+         */
+        public synchronized void setMobileProfile() {
+            _paced = true;
+            _pace = _paceMin;
+            _qsize = _mobileQueue;
+        }
+        
+        
+        /** Min time (ms) between writes. 0 if not paced */
+        public synchronized long pace()
+            { return _pace; }
+            
+            
+        /** Average send latency (ms). Only measured for paced clients */
+        public synchronized long latency()
+            { return Math.round(_latency); }
+            
+            
+        /* 
+         * Return true if the next frame may wait for the pace: It can be coalesced with 
+         * later frames (it has a conflation key) or batched with them, and it is not of 
+         * high priority. Caller must hold the lock. 
+         */
+        private boolean mayWait() {
+            WsFrame f = _outq.peek();
+            return f != null && (f.key() != null || _batchOk) && _outq.highest() != WsFrame.PRIO_HIGH;
+        }
+        
+        
+        /* 
+         * Adapt the pacing to the latency of the last write. If the link is slow, write less 
+         * often, so that more updates are coalesced. If it is fast, or the queue is filling 
+         * up, write more often. Caller must hold the lock. 
+         */
+        private void adaptPace(long latency) {
+            _latency = 0.8 * _latency + 0.2 * latency;
+            if (_latency > _paceLatency)
+                _pace = Math.min(Math.max(_pace * 2, 50), _paceMax);
+            else if (_outq.size() > _qsize / 2 || _latency < _paceLatency / 2)
+                _pace = Math.max(_pace / 2, _paceMin);
+        }
+        
+        
+        /** Number of messages waiting to be sent */
+        public synchronized int queued()
+            { return _outq.size(); }
+        
          
         /** Send message back to client. */
         public void send(String msg) {
-            if (msg == null) msg="";
-            _nOut++; 
-            _ctx.send(msg);
+            send(new WsFrame(msg));
         }
         
+        
+        /** Send a control message (e.g. a reply to a command) to the client. See WsFrame.control */
+        public void sendControl(String msg)
+            { send(WsFrame.control(msg)); }
+            
+            
+        /** 
+         * Send a control message to the client. If replace is true, it is not queued if 
+         * the same message is waiting to be sent already. 
+         */
+        public void sendControl(String msg, boolean replace)
+            { send(WsFrame.control(msg, replace)); }
+        
+        
+        /** 
+         * Send a pre-encoded frame to client. The same frame may be sent 
+         * to many clients without being re-encoded. 
+         * @return true if the frame was queued for sending. 
+         */
+        public boolean send(WsFrame frame) 
+            { return send(frame, null, null); }
+            
+            
+        /** 
+         * Send a pre-encoded frame to client. The frame is added to the outgoing 
+         * queue of the client. 
+         * @param ovf What to do if queue is full. If null, use the setting of the client. 
+         * @param res If not null, count the delivered and dropped messages here. 
+         * @return true if the frame was queued for sending. 
+         */
+        public boolean send(WsFrame frame, Overflow ovf, ServerConfig.Delivery res) {
+            boolean disconnect = false, delay = false;
+            synchronized(this) {
+                if (_closed)
+                    return false;
+                    
+                /* If a frame with the same key is waiting, just replace it */
+                if (frame.key() != null && _latest != null && _latest.containsKey(frame.key())) {
+                    _latest.put(frame.key(), frame);
+                    if (res != null)
+                        res.delivered++;
+                    return true;
+                }
+                
+                /* 
+                 * Control frames are never dropped. If they alone fill the queue, the 
+                 * client does not read, and it is disconnected. 
+                 */
+                if (frame.isControl() && _nControl >= _qsize) {
+                    _nDropped.increment();
+                    _closed = disconnect = true;
+                    clearQueue();
+                }
+                else if (_outq.size() >= _qsize && !frame.isControl()) {
+                    _nDropped.increment();
+                    if (res != null) 
+                        res.dropped++;
+                    switch (ovf == null ? _overflow : ovf) {
+                        case DROP_NEWEST: 
+                            return false;
+                        case DISCONNECT: 
+                            _closed = disconnect = true;
+                            clearQueue();
+                            break;
+                        default: 
+                            /* 
+                             * Drop the oldest frame of the lowest class. If the new frame
+                             * has lower priority than all of the queue, drop the new one.
+                             * Control frames are not dropped. 
+                             */
+                            if (frame.priority() > _outq.lowest())
+                                return false;
+                            drop(_outq.pollLowest());
+                    }
+                }
+                if (!disconnect) {
+                    _outq.add(frame);
+                    _qbytes += frame.size();
+                    if (frame.isControl())
+                        _nControl++;
+                    if (frame.key() != null) {
+                        if (_latest == null)
+                            _latest = new HashMap<String, WsFrame>();
+                        _latest.put(frame.key(), frame);
+                    }
+                    _nOut.increment();
+                    delay = delayFlush(frame);
+                }
+            }
+            if (disconnect) {
+                _conf.log().info("WsNotifier", "Slow client, closing session: "+sesId(_ctx));
+                _ctx.closeSession(StatusCode.POLICY_VIOLATION, "Slow consumer");
+                return false;
+            }
+            if (res != null)
+                res.delivered++;
+            if (!delay)
+                _flusher.iterate(); 
+            return true;
+        }
+        
+        
+        /* 
+         * Return true if sending of the queue can wait for more frames to batch. 
+         * If so, make sure that a flush is scheduled at the end of the window. 
+         * Caller must hold the lock. 
+         */
+        private boolean delayFlush(WsFrame frame) {
+            if (frame.priority() == WsFrame.PRIO_HIGH)
+                return false;
+            int window = (_batchOk ? Math.max(_batchWindow, frame.batchWindow()) : 0);
+            if (_batchOk && _paced)
+                window = Math.max(window, _mobileBatch);
+            if (window <= 0 || _qbytes >= _batchMax)
+                return false;
+            scheduleFlush(window);
+            return true;
+        }
+        
+        
+        /* Make sure that a flush is scheduled within delay ms. Caller must hold the lock. */
+        private void scheduleFlush(long delay) {
+            if (_flushPending)
+                return;
+            _flushPending = true;
+            _sched.schedule( () -> {
+                synchronized(Client.this) {
+                    _flushPending = false;
+                }
+                _flusher.iterate();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        
+        
+        /* Return true if the frame is to be sent to this client in binary form */
+        private boolean isBinary(WsFrame f)
+            { return _binary && f.hasBinary(); }
+            
+            
+        /* Size of the frame as part of a batch */
+        private int frameSize(WsFrame f, boolean bin) {
+            if (bin) {
+                int n = f.binSize(_seqOk);
+                return WsFrame.varintSize(n) + n;
+            }
+            return 1 + f.size(_seqOk);
+        }
+        
+        
+        /* Write a frame to the websocket. cb is called when done */
+        private void write(WsFrame frame, Callback cb) {
+            WriteCallback wcb = new WriteCallback() {
+                public void writeSuccess() { cb.succeeded(); }
+                public void writeFailed(Throwable x) { cb.failed(x); }
+            };
+            boolean seq;
+            synchronized(this) {
+                seq = _seqOk;
+            }
+            ByteBuffer bin = (_binary ? frame.binPayload(seq) : null);
+            ByteBuffer payload = (bin != null ? bin : frame.payload(seq));
+            _bytesOut.add(payload.remaining());
+            if (_ctx.session instanceof WebSocketSession ses) {
+                byte opcode = (bin != null ? OpCode.BINARY : OpCode.TEXT);
+                ses.getCoreSession().sendFrame( (frame.deflate() ? 
+                    new Frame(opcode, payload) : new DeflateExtension.Plain(opcode, payload)), cb, false);
+            }
+            else if (bin != null)
+                _ctx.session.getRemote().sendBytes(bin, wcb);
+            else
+                _ctx.session.getRemote().sendString(seq && frame.seq() > 0 ? 
+                    StandardCharsets.UTF_8.decode(payload).toString() : frame.text(), wcb);
+        }
+        
+        
+        /* 
+         * Take the next frame from the queue. If it has a conflation key, 
+         * return the latest frame with that key. Caller must hold the lock. 
+         */
+        private WsFrame poll() {
+            WsFrame f = _outq.poll();
+            if (f == null)
+                return null;
+            _qbytes -= f.size();
+            if (f.isControl())
+                _nControl--;
+            if (f.key() != null)
+                f = _latest.remove(f.key());
+            return f;
+        }
+        
+        
+        /* 
+         * Account for a frame that is removed from the queue without being sent. 
+         * Caller must hold the lock. 
+         */
+        private void drop(WsFrame f) {
+            if (f == null)
+                return;
+            _qbytes -= f.size();
+            if (f.isControl())
+                _nControl--;
+            if (f.key() != null)
+                _latest.remove(f.key());
+        }
+        
+        
+        /* Look at the next frame without removing it. Caller must hold the lock. */
+        private WsFrame peek() {
+            WsFrame f = _outq.peek();
+            if (f != null && f.key() != null)
+                f = _latest.get(f.key());
+            return f;
+        }
+        
+        
+        private void clearQueue() {
+            _outq.clear();
+            _qbytes = 0;
+            _nControl = 0;
+            if (_latest != null)
+                _latest.clear();
+        }
+        
+        
+        /* 
+         * Add an incoming frame handler to the inbox, and make sure that a worker 
+         * handles it. If the inbox is full, the frame is rejected, unless force is true. 
+         */
+        private void receive(Runnable h, boolean force) {
+            synchronized(_inbox) {
+                if (!force && _inbox.size() >= _inboxSize) {
+                    _nRejected.increment();
+                    _conf.log().debug("WsNotifier", "Inbox full, frame rejected: "+sesId(_ctx));
+                    return;
+                }
+                _inbox.add(h);
+                if (_inboxActive)
+                    return;
+                _inboxActive = true;
+            }
+            _workers.execute(this::handleInbox);
+        }
+        
+        
+        /* 
+         * Handle frames in the inbox. After a few frames, give other clients a 
+         * chance by putting the rest back in the worker queue. 
+         */
+        private void handleInbox() {
+            for (int i=0; i<16; i++) {
+                Runnable h;
+                synchronized(_inbox) {
+                    h = _inbox.poll();
+                    if (h == null) {
+                        _inboxActive = false;
+                        return;
+                    }
+                }
+                try {
+                    h.run();
+                }
+                catch (Exception e) {
+                    _conf.log().warn("WsNotifier", "Cannot handle frame from "+sesId(_ctx)+": "+e);
+                }
+            }
+            _workers.execute(this::handleInbox);
+        }
+        
+        
+        /* Stop sending and discard the queue. Called when session is closed. */
+        private synchronized void stop() {
+            _closed = true; 
+            clearQueue();
+        }
+        
+        
         public void close() {
             closeSes(_ctx);
         }
@@ -83,8 +577,15 @@ public abstract class WsNotifier extends ServerBase implements SesNotifier {
         
         /** 
          * Handler for text frame. To be defined in subclass.
+         * Frames from a client are handled one at a time and in order, by a worker thread. 
          */
         public abstract void handleTextFrame(String text);
+        
+        
+        /** 
+         * Handler for binary frame. May be overridden in subclass. 
+         */
+        public void handleBinaryFrame(byte[] data, int offset, int len) {}
     }
     /************* class Client *************/
     
@@ -92,23 +593,82 @@ public abstract class WsNotifier extends ServerBase implements SesNotifier {
        
        
     /* Count number of logged in users */
-    private int _nLoggedIn;
+    private final AtomicInteger _nLoggedIn = new AtomicInteger(0);
       
    
     /* Count number of visits and logins */
-    private long _visits = 0;
-    private long _logins = 0;
+    private final AtomicLong _visits = new AtomicLong(0);
+    private final AtomicLong _logins = new AtomicLong(0);
+    
+    /* 
+     * Presence index: The sessions of each logged-in user. Updated when sessions are 
+     * opened and closed. A ConcurrentHashMap, since its compute is atomic (that of 
+     * ConcurrentSkipListMap is not, and the sets are updated inside compute). 
+     */
+    private final ConcurrentHashMap<String, Set<Client>> _users = new ConcurrentHashMap<String, Set<Client>>();
    
    
-    /* Origin site. 
-     * Trusted origin sites (regular expression) 
+    /* 
+     * Trusted origin sites (regular expression). Compiled once, since it is
+     * matched for each new session. 
      */
-    private String _origin;
-    private String _trustedOrigin; 
+    private Pattern _trustedOrigin; 
+    
+    
+    /* 
+     * Admission control for new sessions. At most _handshakes sessions are opened 
+     * (authenticated etc.) at the same time. Others wait in _hsPending, up to _hsWait ms 
+     * but at most _hsQueue of them, and are opened by the worker pool when it is their 
+     * turn. No websocket thread waits. The rest are rejected and told to retry after 
+     * _hsRetry seconds (plus a random part, so that the clients do not come back all at once). 
+     * A timer rejects a waiting session when its time is up, even if no permit is released. 
+     */
+    private final Semaphore _handshakes;
+    private final Queue<Pending> _hsPending = new ConcurrentLinkedQueue<Pending>();
+    private final Map<WsContext, Pending> _hsPendingSes = new ConcurrentHashMap<WsContext, Pending>();
+    private final AtomicInteger _hsWaiting = new AtomicInteger(0);
+    private final AtomicLong _hsRejected = new AtomicLong(0);
+    private int _hsQueue, _hsRetry;
+    private long _hsWait;
    
    
     /* Client sessions */
     protected final Map<WsContext, Client> _clients = new ConcurrentHashMap<>();
+    
+    /* Default size of outgoing queue of clients and what to do when it is full */
+    private int _queueSize;
+    private Overflow _defOverflow;
+    
+    /* Default max size of batches */
+    private int _defBatchMax;
+    
+    /* Weights of the priority classes in outgoing queues (high, normal, low) */
+    private int[] _prioWeights = {8, 4, 1};
+    
+    /* 
+     * Delivery profile of mobile clients: queue size, min batch window (ms), and min and 
+     * max time (ms) between writes. The pacing increases when the send latency is above 
+     * _paceLatency (ms). The profile is off unless configured, so that mobile clients 
+     * get the same delivery as before. 
+     */
+    private boolean _mobileProfile;
+    private int _mobileQueue, _mobileBatch;
+    private long _paceMin, _paceMax, _paceLatency;
+    
+    /* Worker threads for incoming frames, and max number of frames waiting per client */
+    private final ExecutorService _workers;
+    private int _inboxSize;
+    
+    /* Scheduler for delayed sending and handshake timeouts */
+    private final ScheduledExecutorService _sched = Executors.newScheduledThreadPool(1, daemonThreads("ws-sched"));
+    
+    /* 
+     * Thread pool for fan-out to many clients. Sets of clients larger than 
+     * _shardSize are split into shards that are sent to in parallel. 
+     * Its worker threads are daemons. 
+     */
+    private final ForkJoinPool _fanout = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private int _shardSize;
      
      /* Callbacks for open and close of sessions */
     private List<SHandler> _sOpen = new ArrayList<SHandler>();
@@ -118,7 +678,93 @@ public abstract class WsNotifier extends ServerBase implements SesNotifier {
    
     public WsNotifier(ServerConfig conf) {
         super(conf);
-        _trustedOrigin = _conf.getProperty("trusted.orgin", ".*");
+        _trustedOrigin = Pattern.compile(_conf.getProperty("trusted.orgin", ".*"));
+        _handshakes = new Semaphore(intProperty("websocket.handshake.max", 
+            4 * Runtime.getRuntime().availableProcessors(), 1));
+        _hsQueue = intProperty("websocket.handshake.queue", 256, 0);
+        _hsWait = intProperty("websocket.handshake.wait", 2000, 0);
+        _hsRetry = intProperty("websocket.handshake.retry", 10, 0);
+        _queueSize = _conf.getIntProperty("websocket.queue.size", 256);
+        _defOverflow = overflowProperty("websocket.queue.overflow", Overflow.DROP_OLDEST);
+        _defBatchMax = _conf.getIntProperty("websocket.batch.maxsize", 16384);
+        _shardSize = _conf.getIntProperty("websocket.fanout.shardsize", 1000);
+        _inboxSize = _conf.getIntProperty("websocket.inbox.size", 256);
+        _prioWeights = weightsProperty("websocket.priority.weights", _prioWeights);
+        _mobileProfile = _conf.getBoolProperty("websocket.mobile.profile", false);
+        _mobileQueue = _conf.getIntProperty("websocket.mobile.queue.size", 64);
+        _mobileBatch = _conf.getIntProperty("websocket.mobile.batch.window", 1000);
+        _paceMin = _conf.getIntProperty("websocket.mobile.pace.min", 100);
+        _paceMax = _conf.getIntProperty("websocket.mobile.pace.max", 5000);
+        _paceLatency = _conf.getIntProperty("websocket.mobile.latency", 500);
+        _workers = Executors.newFixedThreadPool(
+            _conf.getIntProperty("websocket.workers", Runtime.getRuntime().availableProcessors()), 
+            daemonThreads("ws-worker"));
+    }
+    
+    
+    
+    /* Get an integer configuration property. If it is less than min, warn and use min */
+    private int intProperty(String pname, int dval, int min) {
+        int x = _conf.getIntProperty(pname, dval);
+        if (x >= min)
+            return x;
+        _conf.log().warn("WsNotifier", "Config: "+pname+" must be at least "+min+", using "+min);
+        return min;
+    }
+    
+    
+    
+    /** Get the weights of the priority classes from a configuration property (comma separated) */
+    protected int[] weightsProperty(String pname, int[] dval) {
+        String x = _conf.getProperty(pname, null);
+        if (x == null)
+            return dval;
+        String[] a = x.split(",");
+        if (a.length != dval.length) {
+            _conf.log().warn("WsNotifier", "Property "+pname+" must have "+dval.length+" values: "+x);
+            return dval;
+        }
+        try {
+            int[] res = new int[a.length];
+            for (int i=0; i<a.length; i++)
+                res[i] = Integer.parseInt(a[i].trim());
+            return res;
+        }
+        catch (NumberFormatException e) {
+            _conf.log().warn("WsNotifier", "Format error in property "+pname+": "+x);
+            return dval;
+        }
+    }
+    
+    
+    
+    /* 
+     * Thread factory for the pools of the service. The threads are daemons, so that 
+     * they do not keep the JVM alive if stop() is not called. 
+     */
+    protected static ThreadFactory daemonThreads(String name) {
+        AtomicInteger n = new AtomicInteger(0);
+        return r -> {
+            Thread t = new Thread(r, name+"-"+n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+    
+    
+    
+    /** Get an overflow policy from a configuration property */
+    protected Overflow overflowProperty(String pname, Overflow dval) {
+        String x = _conf.getProperty(pname, null);
+        if (x == null)
+            return dval;
+        try {
+            return Overflow.valueOf(x.toUpperCase().replace('-', '_'));
+        }
+        catch (IllegalArgumentException e) {
+            _conf.log().warn("WsNotifier", "Unknown value of "+pname+": "+x);
+            return dval;
+        }
     }
     
          
@@ -133,19 +779,81 @@ public abstract class WsNotifier extends ServerBase implements SesNotifier {
     
     /** Return number of visits */
     public long nVisits()
-        { return _visits; }
+        { return _visits.get(); }
     
     
     /** Return number of logins */
     public long nLogins()
-     { return _logins; }
+     { return _logins.get(); }
     
     
     /** Return number of logged-in users */
     public int nLoggedIn()
-        { return _nLoggedIn;}
+        { return _nLoggedIn.get();}
+     
+     
+    /** Return the userids of logged-in users, sorted. This is a copy */
+    public SortedSet<String> loginUsers()
+        { return new TreeSet<String>(_users.keySet()); }
+        
+        
+    /** Return true if the user has at least one session */
+    public boolean hasLoginUser(String userid)
+        { return userid != null && _users.containsKey(userid); }
+        
+        
+    /** Return the sessions of a user. Empty if the user is not logged in */
+    public Collection<Client> userClients(String userid) {
+        Set<Client> s = (userid == null ? null : _users.get(userid));
+        return (s == null ? Collections.emptySet() : s);
+    }
+    
+    
+    /* Add a session to the presence index */
+    void addUser(Client c) {
+        /* Add inside compute, so a concurrent removeUser cannot drop the set we add to */
+        _users.compute(c.userName(), (k, s) -> {
+            if (s == null)
+                s = ConcurrentHashMap.newKeySet();
+            s.add(c);
+            return s;
+        });
+    }
+    
+    
+    /* Remove a session from the presence index. The user is removed with its last session */
+    void removeUser(Client c) {
+        _users.computeIfPresent(c.userName(), (k, s) -> {
+            s.remove(c);
+            return (s.isEmpty() ? null : s);
+        });
+    }
      
 
+    /** Traffic counters of each client */
+    public List<TrafficStats.ClientInfo> clientStats() {
+        List<TrafficStats.ClientInfo> res = new ArrayList<TrafficStats.ClientInfo>();
+        for (Client c : _clients.values()) {
+            TrafficStats.ClientInfo x = new TrafficStats.ClientInfo();
+            x.id = sesId(c.ctx());
+            x.userid = c.userName();
+            x.created = c.created();
+            x.mobile = c.isMobile();
+            x.binary = c.isBinary();
+            x.nIn = c.nIn();
+            x.nOut = c.nOut();
+            x.dropped = c.nDropped();
+            x.bytesOut = c.bytesOut();
+            x.rejected = c.nRejected();
+            x.queued = c.queued();
+            x.pace = c.pace();
+            x.latency = c.latency();
+            res.add(x);
+        }
+        return res;
+    }
+    
+    
     /** Return collection of clients */
     public Collection<Client> clients()
         { return _clients.values(); }
@@ -190,10 +898,15 @@ public abstract class WsNotifier extends ServerBase implements SesNotifier {
             _conf.log().warn("WsNotifier", "Close session: client "+sesId(ctx)+" not found");
             return;
         }
+        /* If closed twice, only the first one counts */
+        if (_clients.remove(ctx) == null)
+            return;
         _conf.log().debug("WsNotifier", "Close session: "+sesId(ctx)+" ok");
-        if (c.login())
-            _nLoggedIn--;
-        _clients.remove(ctx);
+        if (c.login()) {
+            _nLoggedIn.decrementAndGet();
+            removeUser(c);
+        }
+        c.stop();
         
         /* Call any functions that are registered for handling this */
         for (SHandler h : _sClose)
@@ -214,8 +927,8 @@ public abstract class WsNotifier extends ServerBase implements SesNotifier {
             _conf.log().debug("WsNotifier", "Open session - query string: "+qstring);
           
             /* Check origin */
-            _origin = ctx.header("Origin");
-            if (_origin == null || _origin.matches(_trustedOrigin))
+            String origin = ctx.header("Origin");
+            if (origin == null || _trustedOrigin.matcher(origin).matches())
             { 
                 /* Create client, autenticate and set authorization info */
                 Client client = newClient(ctx);
@@ -225,23 +938,31 @@ public abstract class WsNotifier extends ServerBase implements SesNotifier {
                     if ("_MOBILE_".equals(qs[0]))
                         client._mobile=true;
                 }       
+                if (client._mobile && _mobileProfile)
+                    client.setMobileProfile();
+                client._binary = BIN_PROTOCOL.equals(ctx.session.getUpgradeResponse().getAcceptedSubProtocol());
                 client.setAuthInfo( authenticate(
                     (qstring == null ? null :  (qs.length == 1 ? qstring : qs[1]))
                 ));
                  
                 if (subscribe(ctx, client)) {
                     _conf.log().debug("WsNotifier", "Open session accepted: "+sesId(ctx));
+                    _visits.incrementAndGet();
+                    if (client.login()) {
+                        addUser(client);
+                        _nLoggedIn.incrementAndGet();
+                        _logins.incrementAndGet();
+                    }
+                    
+                    /* 
+                     * The client is published after it is added to the presence index. Once it 
+                     * is in _clients, onClose may find it and close it on a worker thread. 
+                     */
                     _clients.put(ctx, client); 
-                    _visits++;
                  
                     /* Call any functions that are registered for handling this */
                     for (SHandler c: _sOpen)
                        c.handle(client);
-                    
-                    if (client.login()) {
-                        _nLoggedIn++;
-                        _logins++;
-                    }
                 }
                 else {
                     _conf.log().info("WsNotifier", "Open session rejected: "+sesId(ctx));
@@ -249,7 +970,7 @@ public abstract class WsNotifier extends ServerBase implements SesNotifier {
                 }
             }
             else
-                _conf.log().info("WsNotifier", "Open session rejected. Untrusted origin='"+_origin+"'");
+                _conf.log().info("WsNotifier", "Open session rejected. Untrusted origin='"+origin+"'");
           
         } catch(Exception e) {
             _conf.log().warn("WsNotifier", "Open session failed: " + e);
@@ -292,54 +1013,360 @@ public abstract class WsNotifier extends ServerBase implements SesNotifier {
      * Distribute a text to the clients for which the 
      * predicate evaluates to true. 
      */
-    public void postText(Function<Client,String> txt, Predicate<Client> pred) {
+    public void postText(Function<Client,String> txt, Predicate<Client> pred) 
+        { deliverText(txt, pred); }
+    
+    
+    public void postText(String txt, Predicate<Client> pred) 
+        { deliverText(txt, pred); }
+    
+    
+    
+    /**
+     * As postText, but return the number of clients the text was delivered to 
+     * and the number of dropped messages. 
+     */
+    public ServerConfig.Delivery deliverText(Function<Client,String> txt, Predicate<Client> pred) {
+       ServerConfig.Delivery res = new ServerConfig.Delivery();
        try {          
           /* Distribute to all clients */
           for(WsContext ctx : _clients.keySet()) {
               Client client = (Client) _clients.get(ctx);      
               if (client != null && pred.test(client) && txt != null) 
-                 client.send(txt.apply(client));
+                 client.send(new WsFrame(txt.apply(client)), null, res);
           }
        } 
        catch (Exception e) {
           _conf.log().error("WsNotifier", "Cannot distribute string: " + e);
           e.printStackTrace(System.out);
        }
+       return res;
     } 
    
    
    
-    public void postText(String txt, Predicate<Client> pred) {
-        postText(c->txt, pred);
+    public ServerConfig.Delivery deliverText(String txt, Predicate<Client> pred) 
+        { return sendAll(_clients.values(), new WsFrame(txt), null, pred); }
+    
+    
+    
+    /**
+     * Send a frame to the clients for which the predicate evaluates to true. 
+     * Large sets of clients are split into shards that are sent to in parallel. 
+     * It returns when the frame is queued for all the clients, so a client gets
+     * frames in the order they are sent by a thread. 
+     * @param ovf What to do if the queue of a client is full. If null, use the setting of the client. 
+     * @return Number of clients the frame was delivered to and number of dropped messages. 
+     */
+    protected ServerConfig.Delivery sendAll(Collection<? extends Client> clients, WsFrame frame, 
+             Overflow ovf, Predicate<Client> pred) 
+        { return sendAll(clients, frame, ovf, pred, null); }
+        
+        
+        
+    /**
+     * As sendAll above, and call 'sent' for each client that the frame was queued for 
+     * (if not null). 
+     */
+    protected ServerConfig.Delivery sendAll(Collection<? extends Client> clients, WsFrame frame, 
+             Overflow ovf, Predicate<Client> pred, Consumer<Client> sent) 
+    {
+        ServerConfig.Delivery res = new ServerConfig.Delivery();
+        try {
+            if (clients.size() <= _shardSize) {
+                sendShard(clients, frame, ovf, pred, sent, res);
+                return res;
+            }
+            List<Client> cl = new ArrayList<Client>(clients);
+            List<Callable<ServerConfig.Delivery>> shards = new ArrayList<Callable<ServerConfig.Delivery>>();
+            for (int i = 0; i < cl.size(); i += _shardSize) {
+                List<Client> shard = cl.subList(i, Math.min(i + _shardSize, cl.size()));
+                shards.add( () -> {
+                    ServerConfig.Delivery r = new ServerConfig.Delivery();
+                    sendShard(shard, frame, ovf, pred, sent, r);
+                    return r;
+                });
+            }
+            for (Future<ServerConfig.Delivery> f : _fanout.invokeAll(shards)) {
+                ServerConfig.Delivery r = f.get();
+                res.delivered += r.delivered;
+                res.dropped += r.dropped;
+            }
+        }
+        catch (Exception e) {
+            _conf.log().error("WsNotifier", "Cannot distribute string: " + e);
+            e.printStackTrace(System.out);
+        }
+        return res;
+    }
+    
+    
+    
+    private void sendShard(Collection<? extends Client> clients, WsFrame frame, Overflow ovf, 
+             Predicate<Client> pred, Consumer<Client> sent, ServerConfig.Delivery res) 
+    {
+        for (Client client : clients)
+            if ((pred == null || pred.test(client)) && client.send(frame, ovf, res) && sent != null)
+                sent.accept(client);
     }
    
    
+    /* 
+     * A session that waits for its turn to be opened. Frames that arrive meanwhile are 
+     * kept (up to the size of an inbox), and handled when the session is opened. 
+     */
+    private class Pending {
+        final WsContext ctx;
+        final long time = System.currentTimeMillis();
+        ScheduledFuture<?> timer;
+        private List<Consumer<Client>> _frames = new ArrayList<Consumer<Client>>();
+        private Client _client;
+        private boolean _done = false;
+        
+        Pending(WsContext c)
+            { ctx = c; }
+        
+        /* Handle a frame, or keep it until the session is opened */
+        synchronized void receive(Consumer<Client> h) {
+            if (_client != null) 
+                deliver(_client, h);
+            else if (_done)
+                return;
+            else if (_frames.size() < _inboxSize)
+                _frames.add(h);
+            else
+                _conf.log().debug("WsNotifier", "Too many frames before session is opened, frame rejected: "+sesId(ctx));
+        }
+        
+        /* The session is opened (c is null if it was rejected). Handle the frames that are kept */
+        synchronized void opened(Client c) {
+            _client = c;
+            _done = true;
+            if (c != null)
+                for (Consumer<Client> h : _frames)
+                    deliver(c, h);
+            _frames = null;
+        }
+    }
+    
+    
+    /* Put an incoming frame in the inbox of a client */
+    private static void deliver(Client c, Consumer<Client> h) {
+        c._nIn.increment();
+        c.receive( () -> h.accept(c), false );
+    }
+    
+    
+    /* 
+     * Handle an incoming frame. If the session is waiting to be opened, the frame 
+     * is kept until it is. 
+     */
+    private void incoming(WsContext ctx, Consumer<Client> h) {
+        Pending p = _hsPendingSes.get(ctx);
+        if (p != null) {
+            p.receive(h);
+            return;
+        }
+        Client c = _clients.get(ctx);
+        if (c != null)
+            deliver(c, h);
+    }
+    
+    
+    /* 
+     * Open a new session now if a permit is available. If not, put it in the wait 
+     * queue, unless too many are waiting already. Does not block. 
+     */
+    private void admit(WsContext ctx) {
+        if (_handshakes.tryAcquire()) {
+            open(ctx);
+            return;
+        }
+        if (_hsWaiting.incrementAndGet() > _hsQueue) {
+            _hsWaiting.decrementAndGet();
+            reject(ctx);
+            return;
+        }
+        /* The timer is set before the session is queued, so that it is there when it is taken out */
+        Pending p = new Pending(ctx);
+        p.timer = _sched.schedule( () -> {
+            if (unqueue(p))
+                reject(p.ctx);
+        }, _hsWait, TimeUnit.MILLISECONDS);
+        _hsPendingSes.put(ctx, p);
+        _hsPending.add(p);
+        
+        /* A permit may have been released after tryAcquire */
+        openPending();
+    }
+    
+    
+    /* Open a session with a permit that is taken already. Then start waiting sessions */
+    private void open(WsContext ctx) {
+        try {
+            if (ctx.session.isOpen()) {
+                openSes(ctx);
+                /* If it was closed meanwhile, onClose may not have found the client */
+                if (!ctx.session.isOpen() && _clients.containsKey(ctx))
+                    closeSes(ctx);
+            }
+        }
+        finally {
+            _handshakes.release();
+            
+            /*
+             * Frames that came while the session was waiting. They are handled before
+             * the session is removed from the map, so that later frames come after them.
+             */
+            Pending p = _hsPendingSes.get(ctx);
+            if (p != null) {
+                p.opened(_clients.get(ctx));
+                _hsPendingSes.remove(ctx);
+            }
+        }
+        openPending();
+    }
+    
+    
+    /* 
+     * Start opening waiting sessions on the worker pool, as long as permits are 
+     * available. Sessions that have waited longer than _hsWait are rejected. 
+     */
+    private void openPending() {
+        while (!_hsPending.isEmpty() && _handshakes.tryAcquire()) {
+            Pending p = _hsPending.poll();
+            if (p == null) {
+                _handshakes.release();
+                continue;
+            }
+            _hsWaiting.decrementAndGet();
+            p.timer.cancel(false);
+            if (System.currentTimeMillis() - p.time > _hsWait) {
+                _handshakes.release();
+                _hsPendingSes.remove(p.ctx);
+                p.opened(null);
+                reject(p.ctx);
+                continue;
+            }
+            _workers.execute(() -> open(p.ctx));
+        }
+    }
+    
+    
+    /* 
+     * Take a session out of the wait queue. Return false if it is not there (it is 
+     * being opened, or has been removed already). 
+     */
+    private boolean unqueue(Pending p) {
+        if (!_hsPending.remove(p))
+            return false;
+        _hsWaiting.decrementAndGet();
+        p.timer.cancel(false);
+        _hsPendingSes.remove(p.ctx);
+        p.opened(null);
+        return true;
+    }
+    
+    
+    /* Remove a session from the wait queue. Return true if it was waiting there */
+    private boolean removePending(WsContext ctx) {
+        Pending p = _hsPendingSes.get(ctx);
+        return (p != null && unqueue(p));
+    }
+    
+    
+    /* Close a new session because of too many connection attempts */
+    private void reject(WsContext ctx) {
+        _hsRejected.incrementAndGet();
+        _conf.log().debug("WsNotifier", "Open session rejected, too many connection attempts: "+sesId(ctx));
+        ctx.closeSession(StatusCode.TRY_AGAIN_LATER, "Try again later, retry-after="+retryAfter());
+    }
+    
+    
+    /* Return true if new sessions would be rejected now */
+    private boolean overloaded()
+        { return _handshakes.availablePermits() == 0 && _hsWaiting.get() >= _hsQueue; }
+    
+    
+    /* Time (seconds) a rejected client should wait before trying again */
+    private int retryAfter()
+        { return _hsRetry + ThreadLocalRandom.current().nextInt(_hsRetry + 1); }
+        
+        
+    /** Number of new sessions that were rejected because of too many at the same time */
+    public long nHandshakesRejected()
+        { return _hsRejected.get(); }
+   
+   
     public static String sesId(WsContext ctx) {
         return ctx.sessionId().substring(0,8)+"@"+ctx.host();
     }
    
    
+    /* 
+     * Return true if the subprotocols offered by the client (the Sec-WebSocket-Protocol 
+     * header of the upgrade request) include the binary protocol. 
+     */
+    protected static boolean offersBinary(String offered) {
+        if (offered == null)
+            return false;
+        for (String p : offered.split(","))
+            if (BIN_PROTOCOL.equals(p.trim()))
+                return true;
+        return false;
+    }
+    
+    
+    
     public void start(String uri) {    
+    
+        /* If many are waiting to connect already, reject before the upgrade to websocket */
+        a.wsBeforeUpgrade(uri, ctx -> {
+            if (overloaded()) {
+                _hsRejected.incrementAndGet();
+                ctx.header("Retry-After", ""+retryAfter());
+                throw new HttpResponseException(503, "Too many connection attempts, try again later");
+            }
+            /* Accept the binary subprotocol if the client offers it, and no other */
+            ctx.res().setHeader(PROTOCOL_HEADER, 
+                (offersBinary(ctx.header(PROTOCOL_HEADER)) ? BIN_PROTOCOL : null));
+
+            /* Compression offers that DeflateExtension cannot accept */
+            DeflateExtension.declineOffers(ctx.req());
+        });
         
         a.ws(uri, ws -> {
             ws.onConnect(ctx -> {
                 _conf.log().debug("WsNotifier", "Websocket connection: "+sesId(ctx));
                 ctx.enableAutomaticPings();
-                openSes(ctx);
+                admit(ctx);
             });
             
             ws.onMessage(ctx -> {
-                Client c = _clients.get(ctx);    
-                c._nIn++;
-                c.handleTextFrame(ctx.message());
+                String text = ctx.message();
+                incoming(ctx, c -> c.handleTextFrame(text));
             });
             
+            /* The data array is not reused by Jetty, so it can be handled later */
             ws.onBinaryMessage(ctx -> {
+                byte[] data = ctx.data();
+                int offset = ctx.offset(), len = ctx.length();
+                incoming(ctx, c -> c.handleBinaryFrame(data, offset, len));
             }); 
             
+            /* Close after the frames that are waiting in the inbox are handled */
             ws.onClose(ctx -> {
                 _conf.log().debug("WsNotifier", "onClose: "+sesId(ctx)+", "+ctx.status()+", "+ctx.reason());
-                closeSes(ctx);
+                
+                /* 
+                 * A session that was waiting, or was rejected, has no client to close. 
+                 * If it is being opened, open() closes it when it finds it closed. 
+                 */
+                if (removePending(ctx))
+                    return;
+                Client c = _clients.get(ctx);
+                if (c != null)
+                    c.receive( () -> closeSes(ctx), true );
             });
             
             ws.onError(ctx -> {
@@ -350,5 +1377,17 @@ public abstract class WsNotifier extends ServerBase implements SesNotifier {
     
     
     
+    /** 
+     * Stop the service, after the web server is stopped. Sending to clients is stopped, 
+     * scheduled flushes and handshake timeouts are cancelled, and the thread pools are 
+     * shut down. Frames that are in the worker queue already are still handled. 
+     */
+    public void stop() {
+        for (Client c : _clients.values())
+            c.stop();
+        _sched.shutdownNow();
+        _fanout.shutdown();
+        _workers.shutdown();
+    }
 
 }
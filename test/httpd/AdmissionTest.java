@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package no.polaric.core.httpd;
+import java.util.*;
+import java.util.concurrent.*;
+import java.net.http.WebSocketHandshakeException;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Admission control of new sessions (websocket.handshake.*). One session may be 
+ * opened at a time, and the test holds it in an open handler to simulate a 
+ * session that is being opened. 
+ */
+public class AdmissionTest {
+
+    private TestServer _srv;
+    private final CountDownLatch _entered = new CountDownLatch(1), _gate = new CountDownLatch(1);
+
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        _gate.countDown();
+        _srv.close();
+    }
+
+
+    private PubSub start(String queue, String wait, String retry) throws Exception {
+        Properties p = new Properties();
+        p.setProperty("websocket.handshake.max", "1");
+        p.setProperty("websocket.handshake.queue", queue);
+        p.setProperty("websocket.handshake.wait", wait);
+        p.setProperty("websocket.handshake.retry", retry);
+        _srv = new TestServer(p);
+        
+        /* The first session to be opened waits for the gate, holding the permit */
+        PubSub ps = _srv.pubSub();
+        ps.onOpenSes(c -> {
+            if (_entered.getCount() == 0)
+                return;
+            _entered.countDown();
+            try { _gate.await(); }
+            catch (InterruptedException e) {}
+        });
+        return ps;
+    }
+
+
+    /* Connect a session that holds the permit until the gate is opened */
+    private TestServer.Client hold() throws Exception {
+        TestServer.Client c = _srv.connect();
+        assertTrue(_entered.await(5, TimeUnit.SECONDS));
+        return c;
+    }
+
+
+
+    @Test
+    public void waitingSessionsDoNotHoldUpConnects() throws Exception {
+        PubSub ps = start("10", "10000", "10");
+        hold();
+
+        /* Each connect completes at once, although the sessions are not opened yet */
+        long t = System.currentTimeMillis();
+        List<TestServer.Client> clients = new ArrayList<TestServer.Client>();
+        for (int i=0; i<5; i++)
+            clients.add(_srv.connect());
+        assertTrue(System.currentTimeMillis() - t < 2000);
+        Thread.sleep(200);
+        assertEquals(1, ps.nClients());
+
+        _gate.countDown();
+        assertTrue(TestServer.await(() -> ps.nClients() == 6, 5000));
+        assertEquals(0, ps.nHandshakesRejected());
+    }
+
+
+    @Test
+    public void sessionThatWaitedTooLongIsRejected() throws Exception {
+        PubSub ps = start("10", "100", "10");
+        hold();
+        
+        /* It is rejected when its time is up, although the permit is still held */
+        TestServer.Client c = _srv.connect();
+        assertEquals(1013, c.closed.get(5, TimeUnit.SECONDS));
+        assertEquals(1, ps.nHandshakesRejected());
+        assertEquals(1, ps.nClients());
+        
+        _gate.countDown();
+        Thread.sleep(200);
+        assertEquals(1, ps.nHandshakesRejected());
+    }
+
+
+    @Test
+    public void waitingSessionThatIsClosedIsRemoved() throws Exception {
+        PubSub ps = start("10", "10000", "10");
+        hold();
+        TestServer.Client c = _srv.connect();
+        Thread.sleep(200);
+        c.close();
+        c.closed.get(5, TimeUnit.SECONDS);
+        
+        /* The next one takes the place in the queue, and is opened when the permit is released */
+        TestServer.Client d = _srv.connect();
+        _gate.countDown();
+        assertTrue(TestServer.await(() -> ps.nClients() == 2, 5000));
+        Thread.sleep(200);
+        assertEquals(2, ps.nClients());
+        assertEquals(0, ps.nHandshakesRejected());
+    }
+
+
+    @Test
+    public void fullQueueIsRejectedBeforeUpgrade() throws Exception {
+        /* Negative values are taken as 0 */
+        PubSub ps = start("-5", "1000", "-3");
+        hold();
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> _srv.connect());
+        WebSocketHandshakeException x = assertInstanceOf(WebSocketHandshakeException.class, e.getCause());
+        assertEquals(503, x.getResponse().statusCode());
+        assertEquals(Optional.of("0"), x.getResponse().headers().firstValue("Retry-After"));
+        assertEquals(1, ps.nHandshakesRejected());
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Batches of messages (BATCH command): The text and binary framing, and sending 
+ * of a batch when its window expires. 
+ */
+public class BatchTest {
+
+    private static final String RS = "\u001e";
+    private static final int WINDOW = 1000;
+
+    private TestServer _srv;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        Properties p = new Properties();
+        _srv = new TestServer(p);
+        _srv.pubSub().createRoom("test", String.class);
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception
+        { _srv.close(); }
+
+
+    private static String text(WsFrame f) 
+        { return StandardCharsets.UTF_8.decode(f.payload()).toString(); }
+
+
+    /* The next frame of a binary batch. Moves the position of b past it */
+    private static ByteBuffer nextFrame(ByteBuffer b) {
+        int len = WsFrame.getVarint(b);
+        ByteBuffer f = b.slice();
+        f.limit(len);
+        b.position(b.position() + len);
+        return f;
+    }
+
+
+    /* Type, room id and text of a BIN_TEXT frame */
+    private static String binText(ByteBuffer f) {
+        assertEquals(WsFrame.BIN_TEXT, f.get());
+        int id = WsFrame.getVarint(f);
+        return id + ":" + StandardCharsets.UTF_8.decode(f);
+    }
+
+
+    private TestServer.Client subscribe(String... subprotocols) throws Exception {
+        TestServer.Client c = _srv.connect(subprotocols);
+        c.send("BATCH,"+WINDOW);
+        c.send("SUBSCRIBE,test");
+        assertTrue(TestServer.await(() -> _srv.pubSub().getRoom("test").nClients() == 1, 5000));
+        return c;
+    }
+
+
+
+    @Test
+    public void textBatchHasSeparators() {
+        WsFrame b = WsFrame.batch(List.of(
+            new WsFrame("test", "m1"), new WsFrame("test", "m2"+RS+"x")));
+        
+        /* A RS inside a message is replaced */
+        assertEquals("BATCH"+RS+"test,m1"+RS+"test,m2?x", text(b));
+    }
+
+
+    @Test
+    public void binaryBatchHasLengths() {
+        WsFrame f1 = new WsFrame("test", "m1");
+        f1.setBinary(5, null);
+        
+        /* The length of this one needs two bytes */
+        String m2 = "x".repeat(200);
+        WsFrame f2 = new WsFrame("test", m2);
+        f2.setBinary(300, null);
+        
+        ByteBuffer b = WsFrame.batchBinary(List.of(f1, f2)).binPayload();
+        assertEquals(WsFrame.BIN_BATCH, b.get());
+        assertEquals("5:m1", binText(nextFrame(b)));
+        assertEquals("300:"+m2, binText(nextFrame(b)));
+        assertFalse(b.hasRemaining());
+    }
+
+
+    @Test
+    public void textBatchIsSentWhenWindowExpires() throws Exception {
+        TestServer.Client c = subscribe();
+        for (int i=1; i<=3; i++)
+            _srv.pubSub().putText("test", "m"+i);
+        
+        /* Nothing more is posted, so the batch is sent by the timer */
+        assertEquals("BATCH"+RS+"test,m1"+RS+"test,m2"+RS+"test,m3", c.next(WINDOW * 5));
+    }
+
+
+    @Test
+    public void binaryBatchIsSentWhenWindowExpires() throws Exception {
+        TestServer.Client c = subscribe(WsNotifier.BIN_PROTOCOL);
+        int id = _srv.pubSub().getRoom("test").id;
+        ByteBuffer info = c.binary.poll(5, TimeUnit.SECONDS);
+        assertEquals(WsFrame.BIN_ROOM, info.get());
+        
+        _srv.pubSub().putText("test", "m1");
+        _srv.pubSub().putText("test", "m2");
+        ByteBuffer b = c.binary.poll(WINDOW * 5, TimeUnit.MILLISECONDS);
+        assertNotNull(b);
+        assertEquals(WsFrame.BIN_BATCH, b.get());
+        assertEquals(id+":m1", binText(nextFrame(b)));
+        assertEquals(id+":m2", binText(nextFrame(b)));
+        assertFalse(b.hasRemaining());
+    }
+
+
+    @Test
+    public void singleMessageIsNotPacked() throws Exception {
+        TestServer.Client c = subscribe();
+        _srv.pubSub().putText("test", "m1");
+        assertEquals("test,m1", c.next(WINDOW * 5));
+    }
+}
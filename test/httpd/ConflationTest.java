@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package no.polaric.core.httpd;
+import java.util.*;
+import java.util.concurrent.*;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Conflation keys of messages posted by text and binary clients.
+ */
+public class ConflationTest {
+
+    public static class Pos {
+        public String id;
+        public int n;
+        public Pos() {}
+        public Pos(String i, int x) { id=i; n=x; }
+    }
+
+
+    private static final int PACE = 1000;
+
+    private TestServer _srv;
+    private final Queue<Object> _keyed = new ConcurrentLinkedQueue<Object>();
+
+
+    /* keyOf gets the text of a text PUT and an object of the room class otherwise */
+    private String keyOf(Object m) {
+        _keyed.add(m);
+        if (m instanceof String s)
+            m = ServerBase.fromJson(s, Pos.class);
+        return ((Pos) m).id;
+    }
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("websocket.mobile.profile", "true");
+        p.setProperty("websocket.mobile.pace.min", ""+PACE);
+        p.setProperty("websocket.mobile.pace.max", ""+PACE);
+        _srv = new TestServer(p);
+        _srv.pubSub().addRoom("pos",
+            new PubSub.ConflatingRoom(false, false, false, true, Pos.class, this::keyOf));
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception
+        { _srv.close(); }
+
+
+    /* put, room-id, CBOR encoded object */
+    private void putBinary(TestServer.Client c, Object x) {
+        byte[] obj = ServerBase.serializeCbor(x);
+        byte[] b = new byte[obj.length + 6];
+        b[0] = WsFrame.BIN_PUT;
+        int i = WsFrame.putVarint(b, 1, _srv.pubSub().getRoom("pos").id);
+        System.arraycopy(obj, 0, b, i, obj.length);
+        c.ws.sendBinary(ByteBuffer.wrap(b, 0, i + obj.length), true).join();
+    }
+
+
+    private TestServer.Client subscribe(String... subprotocols) throws Exception {
+        PubSub.Room rm = _srv.pubSub().getRoom("pos");
+        int n = rm.nClients();
+        TestServer.Client c = _srv.connect(subprotocols);
+        c.send("SUBSCRIBE,pos");
+        assertTrue(TestServer.await(() -> rm.nClients() == n+1, 5000));
+        return c;
+    }
+
+
+
+    @Test
+    public void textPutIsKeyed() throws Exception {
+        TestServer.Client recv = subscribe();
+        TestServer.Client sender = subscribe();
+        sender.send("PUT,pos,{\"id\":\"a\",\"n\":1}");
+        assertEquals("pos,{\"id\":\"a\",\"n\":1}", recv.next(5000));
+        assertEquals(List.of("{\"id\":\"a\",\"n\":1}"), new ArrayList<Object>(_keyed));
+    }
+
+
+    @Test
+    public void binaryPutIsDecodedToRoomClass() throws Exception {
+        TestServer.Client recv = subscribe();
+        TestServer.Client sender = subscribe(WsNotifier.BIN_PROTOCOL);
+        assertNotNull(sender.binary.poll(5, TimeUnit.SECONDS));
+
+        putBinary(sender, new Pos("b", 2));
+
+        assertEquals("pos,{\"id\":\"b\",\"n\":2}", recv.next(5000));
+        assertEquals(1, _keyed.size());
+        assertTrue(_keyed.peek() instanceof Pos);
+    }
+
+
+    @Test
+    public void textAndBinaryPutShareKeys() throws Exception {
+        /* Updates to a paced client wait in its queue until the pace has passed */
+        TestServer.Client recv = _srv.connectQuery("_MOBILE_");
+        recv.send("SUBSCRIBE,pos");
+        assertTrue(TestServer.await(() -> _srv.pubSub().getRoom("pos").nClients() == 1, 5000));
+        TestServer.Client text = subscribe();
+        TestServer.Client bin = subscribe(WsNotifier.BIN_PROTOCOL);
+        assertNotNull(bin.binary.poll(5, TimeUnit.SECONDS));
+
+        _srv.pubSub().putText("pos", "{\"id\":\"a\",\"n\":0}");
+        assertEquals("pos,{\"id\":\"a\",\"n\":0}", recv.next(5000));
+        text.send("PUT,pos,{\"id\":\"a\",\"n\":1}");
+        assertTrue(TestServer.await(() -> _keyed.size() == 2, 5000));
+        putBinary(bin, new Pos("a", 2));
+
+        assertEquals("pos,{\"id\":\"a\",\"n\":2}", recv.next(PACE * 3));
+        assertNull(recv.next(PACE), "update with the same key was not replaced");
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+public class DecimatorTest {
+
+    private static WsFrame update(String key, double lat, double lon) {
+        WsFrame f = new WsFrame("room", key+"@"+lat+","+lon, key);
+        f.setPosition(lat, lon);
+        return f;
+    }
+
+
+
+    @Test
+    public void smallMovesAreSkipped() {
+        Decimator d = new Decimator(100, 0);
+        WsFrame f = update("a", 60, 10);
+        assertTrue(d.pass(f));
+        d.sent(f);
+        assertFalse(d.pass(update("a", 60.0001, 10)));
+        assertTrue(d.pass(update("a", 60.01, 10)));
+        assertTrue(d.pass(update("b", 60.0001, 10)));
+        assertEquals(1, d.nSkipped());
+    }
+
+
+    @Test
+    public void positionIsOnlyRecordedWhenSent() {
+        Decimator d = new Decimator(100, 0);
+        assertTrue(d.pass(update("a", 60, 10)));
+
+        /* Not queued (e.g. dropped), so the next update is let through too */
+        assertTrue(d.pass(update("a", 60.0001, 10)));
+    }
+
+
+    @Test
+    public void lastSkippedUpdateIsDue() throws Exception {
+        Decimator d = new Decimator(100, 0);
+        WsFrame f = update("a", 60, 10);
+        d.pass(f);
+        d.sent(f);
+        WsFrame f1 = update("a", 60.0001, 10), f2 = update("a", 60.0002, 10);
+        assertFalse(d.pass(f1));
+        assertFalse(d.pass(f2));
+        assertTrue(d.due().isEmpty(), "due before the wait");
+
+        Thread.sleep(1100);
+        assertEquals(List.of(f2), d.due());
+        assertTrue(d.due().isEmpty(), "due twice");
+    }
+
+
+    @Test
+    public void newerUpdateReplacesPending() throws Exception {
+        Decimator d = new Decimator(100, 0);
+        WsFrame f = update("a", 60, 10);
+        d.pass(f);
+        d.sent(f);
+        assertFalse(d.pass(update("a", 60.0001, 10)));
+
+        /* An update that is let through makes the pending one obsolete */
+        assertTrue(d.pass(update("a", 61, 10)));
+        Thread.sleep(1100);
+        assertTrue(d.due().isEmpty());
+    }
+
+
+    @Test
+    public void trailingUpdateReachesClient() throws Exception {
+        try (TestServer srv = new TestServer()) {
+            srv.pubSub().addRoom("pos", new PubSub.ConflatingRoom(String.class, m -> ((String) m).split(":")[0]));
+            TestServer.Client c = srv.connect();
+            c.send("SUBSCRIBE,pos");
+            c.send("RES,pos,100");
+            PubSub.Room rm = srv.pubSub().getRoom("pos");
+            assertTrue(TestServer.await(() -> rm.nClients() == 1, 5000));
+            Thread.sleep(200);
+
+            srv.pubSub().putText("pos", "a:1", 60, 10);
+            srv.pubSub().putText("pos", "a:2", 60.0001, 10);
+            assertEquals("pos,a:1", c.next(5000));
+            assertEquals("pos,a:2", c.next(5000));
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.*;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Websocket compression with DeflateExtension. The java.net.http client does not 
+ * support extensions, so the compressed client is a plain socket.
+ */
+public class DeflateTest {
+
+    private static final int MINSIZE = 100;
+    private static final String BIG = "{\"id\":\"LA7ECA\",\"text\":\"" + "position report ".repeat(100) + "\"}";
+    private static final String SMALL = "{\"id\":\"LA7ECA\"}";
+
+    private TestServer _srv;
+    private Socket _sock;
+    private InputStream _in;
+    private OutputStream _out;
+    private String _response;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("websocket.deflate.minsize", ""+MINSIZE);
+        p.setProperty("websocket.deflate.contexttakeover", "false");
+        _srv = new TestServer(p);
+        _srv.pubSub().createRoom("test", false, false, false, true, String.class);
+        _srv.pubSub().createRoom("plain", String.class);
+        _srv.pubSub().getRoom("plain").compress = false;
+        _response = connect("permessage-deflate; client_no_context_takeover");
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        _sock.close();
+        _srv.close();
+    }
+
+
+    /* Websocket handshake with the given extension offer. Return the response header */
+    private String connect(String offer) throws Exception {
+        if (_sock != null)
+            _sock.close();
+        _sock = new Socket("localhost", _srv.port());
+        _sock.setSoTimeout(5000);
+        _in = new BufferedInputStream(_sock.getInputStream());
+        _out = _sock.getOutputStream();
+        _out.write(("GET /notify HTTP/1.1\r\n" +
+            "Host: localhost:" + _srv.port() + "\r\n" +
+            "Upgrade: websocket\r\n" +
+            "Connection: Upgrade\r\n" +
+            "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+            "Sec-WebSocket-Version: 13\r\n" +
+            "Sec-WebSocket-Extensions: " + offer + "\r\n\r\n")
+            .getBytes(StandardCharsets.US_ASCII));
+        _out.flush();
+        StringBuilder hdr = new StringBuilder();
+        while (!hdr.toString().endsWith("\r\n\r\n"))
+            hdr.append((char) _in.read());
+        return hdr.toString();
+    }
+
+
+    /* Send a masked text frame, compressed or not */
+    private void send(String txt, boolean compress) throws IOException {
+        byte[] data = txt.getBytes(StandardCharsets.UTF_8);
+        if (compress)
+            data = deflate(data);
+        ByteArrayOutputStream f = new ByteArrayOutputStream();
+        f.write(0x81 | (compress ? 0x40 : 0));
+        if (data.length < 126)
+            f.write(0x80 | data.length);
+        else {
+            f.write(0x80 | 126);
+            f.write(data.length >> 8);
+            f.write(data.length & 0xff);
+        }
+        byte[] mask = {1, 2, 3, 4};
+        f.write(mask);
+        for (int i=0; i<data.length; i++)
+            f.write(data[i] ^ mask[i % 4]);
+        _out.write(f.toByteArray());
+        _out.flush();
+    }
+
+
+    /* A frame from the server: RSV1 bit and payload (not inflated) */
+    private record WsMsg(boolean rsv1, byte[] payload) {
+        String text() throws DataFormatException 
+            { return new String(rsv1 ? inflate(payload) : payload, StandardCharsets.UTF_8); }
+    }
+
+
+    private WsMsg read() throws IOException {
+        DataInputStream d = new DataInputStream(_in);
+        int b0 = d.readUnsignedByte();
+        long len = d.readUnsignedByte() & 0x7f;
+        if (len == 126)
+            len = d.readUnsignedShort();
+        else if (len == 127)
+            len = d.readLong();
+        byte[] payload = new byte[(int) len];
+        d.readFully(payload);
+        assertEquals(0x80, b0 & 0x80, "Messages are not fragmented");
+        return new WsMsg((b0 & 0x40) != 0, payload);
+    }
+
+
+    private static byte[] deflate(byte[] data) {
+        Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        d.setInput(data);
+        byte[] buf = new byte[data.length + 64];
+        int n = d.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+        d.end();
+        return Arrays.copyOf(buf, n - 4);
+    }
+
+
+    private static byte[] inflate(byte[] data) throws DataFormatException {
+        Inflater inf = new Inflater(true);
+        byte[] in = Arrays.copyOf(data, data.length + 4);
+        in[data.length+2] = in[data.length+3] = (byte) 0xff;
+        inf.setInput(in);
+        byte[] buf = new byte[65536];
+        int n = inf.inflate(buf);
+        inf.end();
+        return Arrays.copyOf(buf, n);
+    }
+
+
+    private void subscribe(String room) throws Exception {
+        send("SUBSCRIBE," + room, false);
+        assertTrue(TestServer.await(() -> _srv.pubSub().getRoom(room).nClients() == 1, 5000));
+    }
+
+
+
+    /* The Sec-WebSocket-Extensions header of the response, empty if none */
+    private static String extensions(String response) {
+        assertTrue(response.startsWith("HTTP/1.1 101"), response);
+        return response.lines()
+            .filter(l -> l.toLowerCase().startsWith("sec-websocket-extensions:"))
+            .findFirst().orElse("");
+    }
+
+
+
+    @Test
+    public void extensionIsNegotiated() {
+        String ext = extensions(_response);
+        assertTrue(ext.contains("permessage-deflate"), ext);
+        assertTrue(ext.contains("client_no_context_takeover"), ext);
+        
+        /* websocket.deflate.contexttakeover is false */
+        assertTrue(ext.contains("server_no_context_takeover"), ext);
+    }
+
+
+    @Test
+    public void smallServerWindowIsDeclined() throws Exception {
+        String ext = extensions(connect("permessage-deflate; server_max_window_bits=10"));
+        assertFalse(ext.contains("permessage-deflate"), ext);
+        
+        /* Messages are not compressed */
+        subscribe("test");
+        _srv.pubSub().putText("test", BIG);
+        WsMsg m = read();
+        assertFalse(m.rsv1());
+        assertTrue(m.text().contains(BIG));
+    }
+
+
+    @Test
+    public void fallbackOfferIsAccepted() throws Exception {
+        String ext = extensions(connect(
+            "permessage-deflate; server_max_window_bits=9; client_max_window_bits, " +
+            "permessage-deflate; client_max_window_bits"));
+        assertTrue(ext.contains("permessage-deflate"), ext);
+        assertFalse(ext.contains("server_max_window_bits"), ext);
+        assertFalse(ext.contains("client_max_window_bits"), ext);
+        
+        subscribe("test");
+        _srv.pubSub().putText("test", BIG);
+        WsMsg m = read();
+        assertTrue(m.rsv1());
+        assertTrue(m.text().contains(BIG));
+    }
+
+
+    @Test
+    public void fullServerWindowIsAccepted() throws Exception {
+        String ext = extensions(connect("permessage-deflate; server_max_window_bits=15"));
+        assertTrue(ext.contains("permessage-deflate"), ext);
+        assertTrue(ext.contains("server_max_window_bits=15"), ext);
+        
+        subscribe("test");
+        _srv.pubSub().putText("test", BIG);
+        assertTrue(read().rsv1());
+    }
+
+
+    @Test
+    public void bigMessageIsCompressed() throws Exception {
+        subscribe("test");
+        DeflateExtension.Settings s = _srv.server.deflate();
+        long raw = s.rawBytes(), wire = s.wireBytes();
+        
+        /* Each message is compressed by itself (no context takeover) */
+        for (int i=0; i<2; i++) {
+            _srv.pubSub().putText("test", BIG);
+            WsMsg m = read();
+            assertTrue(m.rsv1());
+            assertTrue(m.text().contains(BIG));
+            assertTrue(m.payload().length < BIG.length() / 4);
+        }
+        assertTrue(s.rawBytes() - raw > 2 * BIG.length());
+        assertTrue(s.wireBytes() - wire < (s.rawBytes() - raw) / 4);
+    }
+
+
+    @Test
+    public void smallMessageIsNotCompressed() throws Exception {
+        subscribe("test");
+        DeflateExtension.Settings s = _srv.server.deflate();
+        long raw = s.rawBytes(), wire = s.wireBytes(), plain = s.nPlain();
+        
+        _srv.pubSub().putText("test", SMALL);
+        WsMsg m = read();
+        assertFalse(m.rsv1());
+        assertTrue(m.text().contains(SMALL));
+        assertTrue(m.payload().length < MINSIZE);
+        assertEquals(s.rawBytes() - raw, s.wireBytes() - wire);
+        assertEquals(plain + 1, s.nPlain());
+    }
+
+
+    @Test
+    public void roomWithoutCompression() throws Exception {
+        subscribe("plain");
+        DeflateExtension.Settings s = _srv.server.deflate();
+        long raw = s.rawBytes(), wire = s.wireBytes(), plain = s.nPlain();
+        
+        _srv.pubSub().putText("plain", BIG);
+        WsMsg m = read();
+        assertFalse(m.rsv1());
+        assertTrue(m.text().contains(BIG));
+        assertTrue(s.rawBytes() - raw > BIG.length());
+        assertEquals(s.rawBytes() - raw, s.wireBytes() - wire);
+        assertEquals(plain + 1, s.nPlain());
+    }
+
+
+    @Test
+    public void compressedMessageFromClient() throws Exception {
+        subscribe("test");
+        TestServer.Client c = _srv.connect();
+        c.send("SUBSCRIBE,test");
+        assertTrue(TestServer.await(() -> _srv.pubSub().getRoom("test").nClients() == 2, 5000));
+        
+        send("PUT,test," + BIG, true);
+        String msg = c.next(5000);
+        assertNotNull(msg);
+        assertTrue(msg.contains(BIG));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package no.polaric.core.httpd;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+
+/**
+ * JMH benchmark of the cost of a put to a small room against the total number of 
+ * connected clients. A put should only visit the subscribers of the room, so 
+ * connections that are subscribed to other rooms should not add to the cost. 
+ *
+ * The subscribers do not read, so their queues are full and puts to them are 
+ * dropped. What is left is the cost of finding and visiting the subscribers. 
+ * It is not run by the tests. Run it with:
+ *
+ *   mvn test-compile
+ *   java -cp target/test-classes:target/classes:<test classpath> no.polaric.core.httpd.FanoutBench
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanoutBench {
+
+    private static final int SUBSCRIBERS = 10;
+
+    /* Clients that are subscribed to another room */
+    @Param({"0", "400", "800"})
+    public int idle;
+
+    private TestServer _srv;
+    private final String _msg = "x".repeat(8192);
+
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("websocket.queue.size", "16");
+        p.setProperty("websocket.queue.overflow", "drop-newest");
+        _srv = new TestServer(p);
+        _srv.pubSub().createRoom("bench", String.class);
+        _srv.pubSub().createRoom("other", String.class);
+        for (int i=0; i<SUBSCRIBERS; i++)
+            _srv.connectNotReading().send("SUBSCRIBE,bench");
+        PubSub.Room rm = _srv.pubSub().getRoom("bench");
+        if (!TestServer.await(() -> rm.nClients() == SUBSCRIBERS, 5000))
+            throw new IllegalStateException("Subscribers not connected");
+        
+        /* Fill the socket buffers and the queues of the subscribers */
+        if (!TestServer.await(() -> {
+                _srv.pubSub().putText("bench", _msg);
+                return _srv.pubSub().clients().stream().allMatch(c -> c.nDropped() > 0);
+            }, 30000))
+            throw new IllegalStateException("Queues of subscribers not filled");
+        
+        for (int i=0; i<idle; i++)
+            _srv.connect().send("SUBSCRIBE,other");
+        if (!TestServer.await(() -> _srv.pubSub().getRoom("other").nClients() == idle, 10000))
+            throw new IllegalStateException("Idle clients not connected");
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+        { _srv.close(); }
+
+
+
+    @Benchmark
+    public void put() 
+        { _srv.pubSub().putText("bench", _msg); }
+
+
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(FanoutBench.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package no.polaric.core.httpd;
+import no.polaric.core.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+
+/**
+ * JMH benchmark of the latency of a post to a room with 10000 subscribers, with and 
+ * without sharded fan-out (websocket.fanout.shardsize). The subscribers are not 
+ * connected. Each send takes a fixed time, like queueing and writing a frame. The 
+ * sharded fan-out can only be faster if there is more than one processor. 
+ * It is not run by the tests. Run it with:
+ *
+ *   mvn test-compile
+ *   java -cp target/test-classes:target/classes:<test classpath> no.polaric.core.httpd.FanoutLatencyBench
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanoutLatencyBench {
+
+    private static final long SEND_NS = 2000;
+
+    @Param({"1", "10000"})
+    public int subscribers;
+
+    /* 10000 is one shard for all subscribers */
+    @Param({"1000", "10000"})
+    public int shardSize;
+
+    private TestServer _srv;
+
+
+
+    /* Subscriber that is not connected. A send takes SEND_NS */
+    private static class FakeClient extends PubSub.Client {
+        FakeClient(PubSub ps)
+            { ps.super(null); }
+        
+        @Override public boolean send(WsFrame frame, WsNotifier.Overflow ovf, ServerConfig.Delivery res) {
+            long end = System.nanoTime() + SEND_NS;
+            while (System.nanoTime() < end)
+                Thread.onSpinWait();
+            if (res != null)
+                res.delivered++;
+            return true;
+        }
+    }
+
+
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("websocket.fanout.shardsize", ""+shardSize);
+        _srv = new TestServer(p);
+        PubSub ps = _srv.pubSub();
+        ps.createRoom("big", String.class);
+        PubSub.Room rm = ps.getRoom("big");
+        for (int i=0; i<subscribers; i++)
+            rm.addClient(new FakeClient(ps));
+    }
+
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception
+        { _srv.close(); }
+
+
+
+    @Benchmark
+    public ServerConfig.Delivery post() 
+        { return _srv.pubSub().deliverText("big", "m"); }
+
+
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(FanoutLatencyBench.class.getSimpleName()).build()).run();
+    }
+}
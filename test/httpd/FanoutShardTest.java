@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import no.polaric.core.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Sharded fan-out (websocket.fanout.shardsize). Each subscriber of a big room gets 
+ * a post exactly once. For the latency, see FanoutLatencyBench. 
+ */
+public class FanoutShardTest {
+
+    private static final int SUBSCRIBERS = 5000;
+
+
+    /* Subscriber that is not connected. It counts what it is sent */
+    private static class FakeClient extends PubSub.Client {
+        final AtomicInteger sent = new AtomicInteger();
+        
+        FakeClient(PubSub ps)
+            { ps.super(null); }
+        
+        @Override public boolean send(WsFrame frame, WsNotifier.Overflow ovf, ServerConfig.Delivery res) {
+            sent.incrementAndGet();
+            if (res != null)
+                res.delivered++;
+            return true;
+        }
+    }
+
+
+    private static void postToAll(String shardSize) throws Exception {
+        Properties p = new Properties();
+        p.setProperty("websocket.fanout.shardsize", shardSize);
+        try (TestServer srv = new TestServer(p)) {
+            PubSub ps = srv.pubSub();
+            ps.createRoom("big", String.class);
+            PubSub.Room rm = ps.getRoom("big");
+            List<FakeClient> clients = new ArrayList<FakeClient>();
+            for (int i=0; i<SUBSCRIBERS; i++) {
+                FakeClient c = new FakeClient(ps);
+                assertTrue(rm.addClient(c));
+                clients.add(c);
+            }
+            for (int r=1; r<=3; r++) {
+                assertEquals(SUBSCRIBERS, ps.deliverText("big", "m"+r).delivered);
+                for (FakeClient c : clients)
+                    assertEquals(r, c.sent.get());
+            }
+        }
+    }
+
+
+
+    @Test
+    public void shardsReachEverySubscriberOnce() throws Exception
+        { postToAll("300"); }
+
+
+    @Test
+    public void oneShardReachesEverySubscriberOnce() throws Exception
+        { postToAll(""+SUBSCRIBERS); }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package no.polaric.core.httpd;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+
+/**
+ * JMH benchmark of FrameParser against tokenizing with String.split, as PubSub 
+ * did before. Each operation handles a subscribe, a put and a batch frame and 
+ * takes out the parts that PubSub uses. It is not run by the tests. Run it with:
+ *
+ *   mvn test-compile
+ *   java -cp target/test-classes:target/classes:<test classpath> no.polaric.core.httpd.FrameParserBench
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameParserBench {
+
+    private final String[] _frames = {
+        "SUBSCRIBE,notify:SYSTEM",
+        "PUT,messages,{\"from\":\"LA7ECA\",\"to\":\"ALL\",\"text\":\"Position report from the field\",\"time\":1730000000}",
+        "BATCH,100,20"
+    };
+
+    private final FrameParser _parser = new FrameParser(',');
+
+
+
+    @Benchmark
+    public void parser(Blackhole bh) {
+        for (String text : _frames) {
+            switch (_parser.parse(text)) {
+                case SUBSCRIBE: 
+                    bh.consume(_parser.param());
+                    break;
+                case PUT: 
+                    bh.consume(_parser.field());
+                    bh.consume(_parser.body());
+                    break;
+                case BATCH: 
+                    bh.consume(_parser.hasParam() ? _parser.param() : "0");
+                    break;
+                default: 
+                    break;
+            }
+        }
+    }
+
+
+    @Benchmark
+    public void split(Blackhole bh) {
+        for (String text : _frames) {
+            String[] parms = text.split(",", 2);
+            switch (parms[0]) {
+                case "SUBSCRIBE": 
+                    bh.consume(parms[1]);
+                    break;
+                case "PUT": 
+                    String[] arg = parms[1].split(",", 2);
+                    bh.consume(arg[0]);
+                    bh.consume(arg[1]);
+                    break;
+                case "BATCH": 
+                    bh.consume(parms.length < 2 ? "0" : parms[1]);
+                    break;
+                default: 
+                    break;
+            }
+        }
+    }
+
+
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(FrameParserBench.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package no.polaric.core.httpd;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static no.polaric.core.httpd.FrameParser.Command.*;
+
+
+
+/**
+ * Tokenizing of websocket text frames.
+ */
+public class FrameParserTest {
+
+    private final FrameParser _p = new FrameParser(',');
+
+
+
+    @Test
+    public void commandWithFieldAndBody() {
+        assertEquals(PUT, _p.parse("PUT,room,a,b,c"));
+        assertEquals(PUT, _p.command());
+        assertTrue(_p.hasParam());
+        assertTrue(_p.hasBody());
+        assertEquals("room,a,b,c", _p.param());
+        assertEquals("room", _p.field());
+        assertEquals("a,b,c", _p.body());
+    }
+
+
+    @Test
+    public void commandWithParamOnly() {
+        assertEquals(SUBSCRIBE, _p.parse("SUBSCRIBE,room"));
+        assertTrue(_p.hasParam());
+        assertFalse(_p.hasBody());
+        assertEquals("room", _p.param());
+        assertEquals("room", _p.field());
+        assertNull(_p.body());
+    }
+
+
+    @Test
+    public void commandOnly() {
+        assertEquals(PING, _p.parse("PING"));
+        assertFalse(_p.hasParam());
+        assertFalse(_p.hasBody());
+        assertNull(_p.param());
+        assertNull(_p.field());
+        assertNull(_p.body());
+    }
+
+
+    @Test
+    public void aliases() {
+        assertEquals(SUBSCRIBE, _p.parse("SUB,x"));
+        assertEquals(UNSUBSCRIBE, _p.parse("UNSUB,x"));
+        assertEquals(UNSUBSCRIBE, _p.parse("UNSUBSCRIBE,x"));
+        assertEquals(POST, _p.parse("MSG,x"));
+        assertEquals(POST, _p.parse("POST,x"));
+    }
+
+
+    @Test
+    public void unknownCommands() {
+        /* Prefixes, extensions and lower case of known commands are not accepted */
+        for (String f : new String[] {"SUBSCRIBER,x", "SUBS", "PU,x", "put,x", "PINGPING", "RESUMEX", " PUT,x"})
+            assertEquals(UNKNOWN, _p.parse(f), f);
+    }
+
+
+    @Test
+    public void shortFrames() {
+        assertEquals(UNKNOWN, _p.parse(""));
+        assertFalse(_p.hasParam());
+        assertNull(_p.param());
+
+        assertEquals(UNKNOWN, _p.parse(","));
+        assertTrue(_p.hasParam());
+        assertEquals("", _p.param());
+        assertEquals("", _p.field());
+        assertNull(_p.body());
+
+        assertEquals(UNKNOWN, _p.parse("P"));
+        assertFalse(_p.hasParam());
+    }
+
+
+    @Test
+    public void emptyFields() {
+        /* A separator with nothing after it gives empty strings, not null */
+        assertEquals(PUT, _p.parse("PUT,"));
+        assertTrue(_p.hasParam());
+        assertFalse(_p.hasBody());
+        assertEquals("", _p.param());
+        assertEquals("", _p.field());
+
+        assertEquals(PUT, _p.parse("PUT,,"));
+        assertTrue(_p.hasBody());
+        assertEquals("", _p.field());
+        assertEquals("", _p.body());
+
+        assertEquals(PUT, _p.parse("PUT,,msg"));
+        assertEquals("", _p.field());
+        assertEquals("msg", _p.body());
+
+        assertEquals(PUT, _p.parse("PUT,room,"));
+        assertEquals("room", _p.field());
+        assertEquals("", _p.body());
+    }
+
+
+    @Test
+    public void separatorIsPerParser() {
+        FrameParser p = new FrameParser(' ');
+        assertEquals(SUBSCRIBE, p.parse("SUB node1"));
+        assertEquals("node1", p.param());
+
+        /* The other separator is part of the command */
+        assertEquals(UNKNOWN, p.parse("SUB,node1"));
+        assertFalse(p.hasParam());
+
+        assertEquals(POST, p.parse("MSG hello, world"));
+        assertEquals("hello, world", p.param());
+        assertEquals("hello,", p.field());
+        assertEquals("world", p.body());
+    }
+
+
+    @Test
+    public void parserIsReused() {
+        _p.parse("PUT,room,msg");
+        assertEquals(PING, _p.parse("PING"));
+        assertNull(_p.field());
+        assertNull(_p.body());
+        _p.parse("PUT,a,b");
+        assertEquals(BATCH, _p.parse("BATCH,100"));
+        assertEquals("100", _p.param());
+        assertFalse(_p.hasBody());
+    }
+
+
+    @Test
+    public void sameAsSplit() {
+        /* field and body are the same as split with a limit of 3 */
+        for (String f : new String[] {"PUT,r,m", "PUT,r,m,n", "PUT,r,", "PUT,,m", "VIEW,r,1,2,3,4", "ACK,room,17"}) {
+            String[] parts = f.split(",", 3);
+            _p.parse(f);
+            assertEquals(parts[1], _p.field(), f);
+            assertEquals(parts[2], _p.body(), f);
+        }
+    }
+}
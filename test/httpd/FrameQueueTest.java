@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package no.polaric.core.httpd;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Order of frames in FrameQueue, and which frames are dropped.
+ */
+public class FrameQueueTest {
+
+    private static WsFrame frame(String text, int prio) {
+        WsFrame f = new WsFrame(text);
+        f.setPriority(prio);
+        return f;
+    }
+
+
+
+    @Test
+    public void classesAreServedByWeight() {
+        FrameQueue q = new FrameQueue(new int[] {2, 1});
+        for (int i=0; i<4; i++)
+            q.add(frame("h"+i, WsFrame.PRIO_HIGH));
+        for (int i=0; i<2; i++)
+            q.add(frame("n"+i, WsFrame.PRIO_NORMAL));
+
+        StringBuilder order = new StringBuilder();
+        for (WsFrame f = q.poll(); f != null; f = q.poll())
+            order.append(f.text()).append(' ');
+        assertEquals("h0 h1 n0 h2 h3 n1 ", order.toString());
+        assertTrue(q.isEmpty());
+    }
+
+
+    @Test
+    public void oldestOfLowestClassIsDropped() {
+        FrameQueue q = new FrameQueue(new int[] {8, 4, 1});
+        q.add(frame("n0", WsFrame.PRIO_NORMAL));
+        q.add(frame("h0", WsFrame.PRIO_HIGH));
+        q.add(frame("n1", WsFrame.PRIO_NORMAL));
+        assertEquals(WsFrame.PRIO_NORMAL, q.lowest());
+        assertEquals("n0", q.pollLowest().text());
+        assertEquals("n1", q.pollLowest().text());
+        assertEquals("h0", q.pollLowest().text());
+        assertNull(q.pollLowest());
+    }
+
+
+    @Test
+    public void controlFramesAreNotDropped() {
+        FrameQueue q = new FrameQueue(new int[] {8, 4, 1});
+        q.add(WsFrame.control("RESUME,x"));
+        q.add(frame("h0", WsFrame.PRIO_HIGH));
+        assertEquals(WsFrame.PRIO_HIGH, q.lowest());
+        assertEquals("h0", q.pollLowest().text());
+        assertEquals(-1, q.lowest());
+        assertNull(q.pollLowest());
+        assertEquals(1, q.size());
+        assertEquals("RESUME,x", q.poll().text());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import no.polaric.core.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Overflow policies of rooms (Room.overflow) when the outgoing queue of a client is 
+ * full, and the delivered and dropped counts returned by deliver and deliverText. 
+ * The slow client does not read until the queue is full. Then the frames that come 
+ * first are the ones that were in the socket buffers, and the rest are from the queue. 
+ */
+public class OverflowTest {
+
+    private static final int QUEUE = 16;
+    private static final String PAD = "x".repeat(65536);
+
+    private TestServer _srv;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("websocket.queue.size", ""+QUEUE);
+        _srv = new TestServer(p);
+        _srv.pubSub().createRoom("test", String.class);
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception
+        { _srv.close(); }
+
+
+    private TestServer.Client subscribe(TestServer.Client c, int n) throws Exception {
+        c.send("SUBSCRIBE,test");
+        assertTrue(TestServer.await(() -> _srv.pubSub().getRoom("test").nClients() == n, 5000));
+        return c;
+    }
+
+
+    /* Post large messages until the queue of a client is full and one is dropped */
+    private ServerConfig.Delivery fill() throws Exception {
+        ServerConfig.Delivery[] res = new ServerConfig.Delivery[1];
+        assertTrue(TestServer.await(() -> {
+            res[0] = _srv.pubSub().deliverText("test", "old,"+PAD);
+            return res[0].dropped > 0;
+        }, 10000), "queue was never full");
+        return res[0];
+    }
+
+
+    /* Read frames until one that is equal to msg. Return the ones that are not old */
+    private static List<String> until(TestServer.Client c, String msg) throws Exception {
+        List<String> res = new ArrayList<String>();
+        for (String m = c.next(5000); m != null; m = c.next(5000)) {
+            if (!m.startsWith("test,old,"))
+                res.add(m);
+            if (m.equals(msg))
+                return res;
+        }
+        fail(msg+" did not arrive");
+        return null;
+    }
+
+
+
+    @Test
+    public void dropOldestKeepsNewestFrames() throws Exception {
+        _srv.pubSub().getRoom("test").overflow = WsNotifier.Overflow.DROP_OLDEST;
+        TestServer.Client c = subscribe(_srv.connectNotReading(), 1);
+        
+        ServerConfig.Delivery res = fill();
+        assertEquals(1, res.delivered);
+        assertEquals(1, res.dropped);
+        
+        /* Each new message pushes out an old one */
+        for (int i=0; i<QUEUE; i++) {
+            res = _srv.pubSub().deliverText("test", "new"+i);
+            assertEquals(1, res.delivered);
+            assertEquals(1, res.dropped);
+        }
+        c.read();
+        List<String> got = until(c, "test,new"+(QUEUE-1));
+        assertEquals(QUEUE, got.size());
+        for (int i=0; i<QUEUE; i++)
+            assertEquals("test,new"+i, got.get(i));
+    }
+
+
+    @Test
+    public void dropNewestKeepsQueue() throws Exception {
+        _srv.pubSub().getRoom("test").overflow = WsNotifier.Overflow.DROP_NEWEST;
+        TestServer.Client slow = subscribe(_srv.connectNotReading(), 1);
+        fill();
+        TestServer.Client fast = subscribe(_srv.connect(), 2);
+        
+        /* The fast client gets it, the slow one does not */
+        ServerConfig.Delivery res = _srv.pubSub().deliver("test", "new");
+        assertEquals(1, res.delivered);
+        assertEquals(1, res.dropped);
+        assertEquals("test,\"new\"", fast.next(5000));
+        
+        res = _srv.pubSub().deliverText("test", "last");
+        assertEquals(1, res.delivered);
+        assertEquals(1, res.dropped);
+        assertEquals("test,last", fast.next(5000));
+        
+        /* Only old frames were queued for the slow client */
+        slow.read();
+        String m;
+        while ((m = slow.next(1000)) != null)
+            assertTrue(m.startsWith("test,old,"), "not dropped: "+m);
+    }
+
+
+    @Test
+    public void disconnectClosesSlowClient() throws Exception {
+        _srv.pubSub().getRoom("test").overflow = WsNotifier.Overflow.DISCONNECT;
+        TestServer.Client c = subscribe(_srv.connectNotReading(), 1);
+        WsNotifier.Client sc = _srv.pubSub().clients().iterator().next();
+        
+        ServerConfig.Delivery res = fill();
+        assertEquals(0, res.delivered);
+        assertEquals(1, res.dropped);
+        assertEquals(0, sc.queued());
+        assertFalse(sc.send(new WsFrame("test")));
+        
+        /* The close frame comes after what was in the socket buffers */
+        c.read();
+        assertEquals(1008, c.closed.get(10, TimeUnit.SECONDS));
+        assertTrue(TestServer.await(() -> _srv.pubSub().getRoom("test").nClients() == 0, 5000));
+        assertEquals(0, _srv.pubSub().deliverText("test", "after").delivered);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package no.polaric.core.httpd;
+import java.util.*;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Pacing of writes to mobile clients. The pace is fixed (min = max), so that it
+ * does not adapt to the latency of the test link. Messages that are not paced 
+ * arrive at once, messages that are paced arrive coalesced. 
+ */
+public class PacingTest {
+
+    private static final int PACE = 4000;
+
+    private TestServer _srv;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("websocket.mobile.profile", "true");
+        p.setProperty("websocket.mobile.pace.min", ""+PACE);
+        p.setProperty("websocket.mobile.pace.max", ""+PACE);
+        _srv = new TestServer(p);
+        _srv.pubSub().createRoom("plain", String.class);
+        _srv.pubSub().addRoom("conf", 
+            new PubSub.ConflatingRoom(String.class, m -> ((String) m).substring(0, 1)));
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception
+        { _srv.close(); }
+
+
+    private TestServer.Client subscribe(String room) throws Exception {
+        TestServer.Client c = _srv.connectQuery("_MOBILE_");
+        c.send("SUBSCRIBE,"+room);
+        assertTrue(TestServer.await(() -> _srv.pubSub().getRoom(room).nClients() == 1, 5000));
+        return c;
+    }
+
+
+    /* The text frames up to and including last */
+    private static List<String> until(TestServer.Client c, String last) throws Exception {
+        List<String> res = new ArrayList<String>();
+        for (String m = c.next(PACE * 2); m != null; m = c.next(PACE * 2)) {
+            res.add(m);
+            if (m.equals(last))
+                return res;
+        }
+        fail("did not get "+last+", got "+res);
+        return res;
+    }
+
+
+
+    @Test
+    public void messagesThatCannotBeCoalescedAreNotPaced() throws Exception {
+        TestServer.Client c = subscribe("plain");
+        WsNotifier.Client sc = _srv.pubSub().clients().iterator().next();
+        assertEquals(PACE, sc.pace());
+
+        /* If they were paced, there would be PACE ms between them */
+        for (int i=0; i<50; i++)
+            _srv.pubSub().putText("plain", "m"+i);
+        for (int i=0; i<50; i++)
+            assertEquals("plain,m"+i, c.next(PACE / 2));
+        assertEquals(0, sc.nDropped());
+    }
+
+
+    @Test
+    public void updatesAreCoalescedBetweenWrites() throws Exception {
+        TestServer.Client c = subscribe("conf");
+        for (int i=0; i<20; i++)
+            _srv.pubSub().putText("conf", "a"+i);
+        
+        /* The first is written at once, the others wait for the pace and replace each other */
+        List<String> msgs = until(c, "conf,a19");
+        assertEquals("conf,a0", msgs.get(0));
+        assertTrue(msgs.size() < 20, "updates were not coalesced: "+msgs);
+    }
+
+
+    @Test
+    public void profileIsOffByDefault() throws Exception {
+        try (TestServer srv = new TestServer()) {
+            srv.connectQuery("_MOBILE_");
+            assertTrue(TestServer.await(() -> srv.pubSub().nClients() == 1, 5000));
+            WsNotifier.Client sc = srv.pubSub().clients().iterator().next();
+            assertTrue(sc.isMobile());
+            assertEquals(0, sc.pace());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Views and decimation of clients that get the messages of a room through a pattern, 
+ * and removal of the state clients have for a room when it is removed. 
+ */
+public class PatternFilterTest {
+
+    private TestServer _srv;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        _srv = new TestServer();
+        _srv.pubSub().addRoom("trk:pos", new PubSub.ConflatingRoom(String.class, m -> ((String) m).split(":")[0]));
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception
+        { _srv.close(); }
+
+
+    /* 
+     * Send commands, and wait until they are handled. Commands of a client are handled 
+     * in order, so when the reply to RESUME comes, the others are done. 
+     */
+    private static void command(TestServer.Client c, String... cmds) throws Exception {
+        for (String x : cmds)
+            c.send(x);
+        c.send("RESUME");
+        assertTrue(c.next(5000).startsWith("RESUME,"));
+    }
+
+
+    /* The server side of the client that uses the binary protocol or not */
+    private PubSub.Client serverClient(int n, boolean binary) throws Exception {
+        assertTrue(TestServer.await(() -> _srv.pubSub().nClients() == n, 5000));
+        for (WsNotifier.Client c : _srv.pubSub().clients())
+            if (c.isBinary() == binary)
+                return (PubSub.Client) c;
+        return null;
+    }
+
+
+
+    @Test
+    public void viewAppliesToPatternSubscriber() throws Exception {
+        TestServer.Client c = _srv.connect();
+        command(c, "SUBSCRIBE,trk:*", "VIEW,trk:pos,59,9,61,11");
+        
+        _srv.pubSub().putText("trk:pos", "a:1", 70, 10);
+        _srv.pubSub().putText("trk:pos", "b:1", 60, 10);
+        assertEquals("trk:pos,b:1", c.next(5000));
+        assertNull(c.next(500));
+    }
+
+
+    @Test
+    public void decimationAppliesToPatternSubscriber() throws Exception {
+        TestServer.Client c = _srv.connect();
+        command(c, "SUBSCRIBE,trk:*", "RES,trk:pos,100");
+        
+        /* a:2 is held back, since it moved less than 100 m. It comes later */
+        _srv.pubSub().putText("trk:pos", "a:1", 60, 10);
+        _srv.pubSub().putText("trk:pos", "a:2", 60.0001, 10);
+        _srv.pubSub().putText("trk:pos", "b:1", 60, 10);
+        assertEquals("trk:pos,a:1", c.next(5000));
+        assertEquals("trk:pos,b:1", c.next(5000));
+        assertEquals("trk:pos,a:2", c.next(5000));
+    }
+
+
+    @Test
+    public void unsubscribedPatternDropsState() throws Exception {
+        TestServer.Client c = _srv.connect();
+        PubSub.Client sc = serverClient(1, false);
+        command(c, "SUBSCRIBE,trk:*", "VIEW,trk:pos,59,9,61,11", "RES,trk:pos,100");
+        assertEquals(1, sc._wcViews.size());
+        assertEquals(1, sc._wcDecim.size());
+        
+        command(c, "UNSUBSCRIBE,trk:*");
+        assertTrue(sc._wcViews.isEmpty());
+        assertTrue(sc._wcDecim.isEmpty());
+        
+        /* Without a subscription or a pattern, a view is not kept */
+        command(c, "VIEW,trk:pos,59,9,61,11");
+        assertTrue(sc._wcViews.isEmpty());
+    }
+
+
+    @Test
+    public void removedRoomStateIsRemoved() throws Exception {
+        TestServer.Client member = _srv.connect();
+        PubSub.Client sm = serverClient(1, false);
+        command(member, "SUBSCRIBE,trk:pos", "RES,trk:pos,100");
+        TestServer.Client pattern = _srv.connect(WsNotifier.BIN_PROTOCOL);
+        PubSub.Client sp = serverClient(2, true);
+        command(pattern, "SUBSCRIBE,trk:*", "VIEW,trk:pos,59,9,61,11", "RES,trk:pos,100");
+        
+        /* a:2 is held back for both */
+        _srv.pubSub().putText("trk:pos", "a:1", 60, 10);
+        _srv.pubSub().putText("trk:pos", "a:2", 60.0001, 10);
+        assertEquals("trk:pos,a:1", member.next(5000));
+        assertEquals(WsFrame.BIN_ROOM, pattern.binary.poll(5, TimeUnit.SECONDS).get());
+        assertNotNull(pattern.binary.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, sm._decim.size());
+        assertEquals(1, sp._knownRooms.size());
+        
+        _srv.pubSub().removeRoom("trk:pos");
+        assertTrue(sm._decim.isEmpty());
+        assertTrue(sp._wcViews.isEmpty());
+        assertTrue(sp._wcDecim.isEmpty());
+        assertTrue(sp._knownRooms.isEmpty());
+        
+        /* The held back update is not sent for the removed room */
+        assertNull(member.next(2500));
+        assertNull(pattern.binary.poll(500, TimeUnit.MILLISECONDS));
+    }
+}
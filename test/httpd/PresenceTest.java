@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Presence index of logged-in users, updated from several threads at once.
+ */
+public class PresenceTest {
+
+    private TestServer _srv;
+    private ExecutorService _exec;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        _srv = new TestServer();
+        _exec = Executors.newFixedThreadPool(4);
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        _exec.shutdownNow();
+        _srv.close();
+    }
+
+
+    /* Session of a logged-in user, without a connection */
+    private WsNotifier.Client session(String userid) {
+        return _srv.pubSub().new Client(null) {
+            @Override public String userName()
+                { return userid; }
+        };
+    }
+
+
+
+    @Test
+    public void sessionIsNotLostWhenAnotherCloses() throws Exception {
+        PubSub ps = _srv.pubSub();
+        for (int i=0; i<2000; i++) {
+            WsNotifier.Client a = session("u");
+            CyclicBarrier start = new CyclicBarrier(4);
+            List<Future<?>> tasks = new ArrayList<Future<?>>();
+            tasks.add(_exec.submit(() -> { start.await(); ps.addUser(a); return null; }));
+            for (int j=0; j<3; j++)
+                tasks.add(_exec.submit(() -> {
+                    start.await();
+                    for (int k=0; k<20; k++) {
+                        WsNotifier.Client b = session("u");
+                        ps.addUser(b);
+                        ps.removeUser(b);
+                    }
+                    return null;
+                }));
+            for (Future<?> f : tasks)
+                f.get(5, TimeUnit.SECONDS);
+
+            assertTrue(ps.hasLoginUser("u"), "user lost in round "+i);
+            assertEquals(Set.of(a), new HashSet<WsNotifier.Client>(ps.userClients("u")));
+            ps.removeUser(a);
+            assertFalse(ps.hasLoginUser("u"));
+        }
+    }
+
+
+    @Test
+    public void loginUsersIsCopy() throws Exception {
+        PubSub ps = _srv.pubSub();
+        ps.addUser(session("a"));
+        SortedSet<String> users = ps.loginUsers();
+        ps.addUser(session("b"));
+        assertEquals(new TreeSet<String>(List.of("a")), users);
+        assertEquals(new TreeSet<String>(List.of("a", "b")), ps.loginUsers());
+        users.add("c");
+        assertFalse(ps.hasLoginUser("c"));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package no.polaric.core.httpd;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Replies to commands (control frames) and messages of a high priority room while 
+ * the outgoing queue of a client is saturated. The client is paced (mobile profile, 
+ * accepting batches) so that the backlog is in the queue on the server, not in socket 
+ * buffers. The pace is so long that no more queued messages are written during the 
+ * test, so a frame that arrives must have gone ahead of the queue. 
+ */
+public class PriorityLoadTest {
+
+    private static final int PACE = 60000, QUEUE = 32;
+
+    private TestServer _srv;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("websocket.mobile.profile", "true");
+        p.setProperty("websocket.mobile.queue.size", ""+QUEUE);
+        p.setProperty("websocket.mobile.pace.min", ""+PACE);
+        p.setProperty("websocket.mobile.pace.max", ""+PACE);
+        _srv = new TestServer(p);
+        _srv.pubSub().createRoom("load", String.class);
+        _srv.pubSub().createRoom("flood", String.class);
+        _srv.pubSub().getRoom("flood").priority = WsFrame.PRIO_LOW;
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception
+        { _srv.close(); }
+
+
+    /* 
+     * Next text frame that starts with prefix. Frames that come before it are counted 
+     * in skipped. null if none within 5 seconds 
+     */
+    private static String until(TestServer.Client c, String prefix, AtomicInteger skipped) throws Exception {
+        for (String m = c.next(5000); m != null; m = c.next(5000)) {
+            if (m.startsWith(prefix))
+                return m;
+            skipped.incrementAndGet();
+        }
+        return null;
+    }
+
+
+
+    /* 
+     * Connect a paced client, subscribe it to the rooms and post to the first one 
+     * until its queue is full and messages are dropped. 
+     */
+    private WsNotifier.Client flood(TestServer.Client c, String... rooms) throws Exception {
+        for (String rid : rooms)
+            c.send("SUBSCRIBE,"+rid);
+        
+        /* Batches of one frame, so that the writes are paced */
+        c.send("BATCH,0,1");
+        for (String rid : rooms) {
+            PubSub.Room rm = _srv.pubSub().getRoom(rid);
+            assertTrue(TestServer.await(() -> rm.nClients() == 1, 5000));
+        }
+        WsNotifier.Client sc = _srv.pubSub().clients().iterator().next();
+
+        String msg = "x".repeat(1000);
+        assertTrue(TestServer.await(() -> {
+            _srv.pubSub().putText(rooms[0], msg);
+            return sc.queued() >= QUEUE && sc.nDropped() > 0;
+        }, 5000));
+        return sc;
+    }
+
+
+
+    @Test
+    public void controlFramesAreNotDelayedBySaturatedQueue() throws Exception {
+        TestServer.Client c = _srv.connectQuery("_MOBILE_");
+        WsNotifier.Client sc = flood(c, "load");
+        AtomicInteger skipped = new AtomicInteger();
+        
+        for (int i=0; i<10; i++) {
+            c.send("RESUME");
+            assertNotNull(until(c, "RESUME,", skipped), "reply was dropped or delayed");
+            assertTrue(sc.queued() >= QUEUE / 2, "queue is no longer saturated: "+sc.queued());
+        }
+        /* Only messages written before the queue was full came before the replies */
+        assertTrue(skipped.get() < QUEUE / 2, skipped.get()+" queued messages came before the replies");
+    }
+
+
+    @Test
+    public void highPriorityRoomIsNotDelayedByLowPriorityFlood() throws Exception {
+        TestServer.Client c = _srv.connectQuery("_MOBILE_");
+        WsNotifier.Client sc = flood(c, "flood", "notify:SYSTEM");
+        AtomicInteger skipped = new AtomicInteger();
+
+        for (int i=0; i<10; i++) {
+            _srv.pubSub().putText("notify:SYSTEM", "n"+i);
+            assertEquals("notify:SYSTEM,n"+i, until(c, "notify:SYSTEM,", skipped), "message was dropped or delayed");
+            assertTrue(sc.queued() >= QUEUE / 2, "queue is no longer saturated: "+sc.queued());
+        }
+        assertTrue(skipped.get() < QUEUE / 2, skipped.get()+" queued messages came before notify:SYSTEM");
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Three nodes connected in a cycle by bridges. Messages between the nodes are JSON
+ * encoded and decoded, as they are on real node links.
+ */
+public class PubSubBridgeTest {
+
+    /* Node link that delivers messages directly to the bridge of another node */
+    static class Link extends NodeWsApi<PubSubBridge.Message> {
+        final Map<String, Link> peers = new LinkedHashMap<String, Link>();
+        Handler<PubSubBridge.Message> handler;
+
+        Link(TestServer srv, String nodeid)
+            { super(srv.conf, nodeid, null, PubSubBridge.Message.class); }
+
+        @Override public List<String> getNodes()
+            { return new ArrayList<String>(peers.keySet()); }
+
+        @Override public void setHandler(Handler<PubSubBridge.Message> h)
+            { handler = h; }
+
+        @Override public boolean put(String nodeid, PubSubBridge.Message m) {
+            Link p = peers.get(nodeid);
+            if (p == null)
+                return false;
+            p.handler.recv(nodeId(), (PubSubBridge.Message)
+                ServerBase.fromJson(ServerBase.toJson(m), PubSubBridge.Message.class));
+            return true;
+        }
+    }
+
+
+    private TestServer[] _srv = new TestServer[3];
+    private Link[] _link = new Link[3];
+    private PubSubBridge[] _bridge = new PubSubBridge[3];
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        for (int i=0; i<3; i++) {
+            _srv[i] = new TestServer();
+            _srv[i].pubSub().createRoom("r", String.class);
+            _srv[i].pubSub().getRoom("r").bridged = true;
+            _link[i] = new Link(_srv[i], "node"+i);
+        }
+        for (int i=0; i<3; i++)
+            for (int j=0; j<3; j++)
+                if (i != j)
+                    _link[i].peers.put("node"+j, _link[j]);
+        for (int i=0; i<3; i++)
+            _bridge[i] = new PubSubBridge(_srv[i].conf, _srv[i].pubSub(), _link[i]);
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        for (TestServer s : _srv)
+            s.close();
+    }
+
+
+
+    @Test
+    public void messagesReachOtherNodes() throws Exception {
+        TestServer.Client c = _srv[2].connect();
+        c.send("SUBSCRIBE,r");
+        assertTrue(TestServer.await(() -> _bridge[0].hasRemoteInterest("r"), 5000));
+
+        _srv[0].pubSub().putText("r", "hello");
+        assertEquals("r,hello", c.next(5000));
+        assertNull(c.next(500), "message was delivered more than once");
+    }
+
+
+    @Test
+    public void interestGoesAwayInCycle() throws Exception {
+        TestServer.Client c = _srv[0].connect();
+        c.send("SUBSCRIBE,r");
+        assertTrue(TestServer.await(() ->
+            _bridge[1].hasRemoteInterest("r") && _bridge[2].hasRemoteInterest("r"), 5000));
+
+        c.send("UNSUBSCRIBE,r");
+        assertTrue(TestServer.await(() ->
+            !_bridge[0].hasRemoteInterest("r") && !_bridge[1].hasRemoteInterest("r") &&
+            !_bridge[2].hasRemoteInterest("r"), 5000), "interest is kept alive by the cycle");
+    }
+
+
+    @Test
+    public void interestWithoutRoomsIsIgnored() throws Exception {
+        PubSubBridge.Message m = new PubSubBridge.Message();
+        m.type = "INTEREST";
+        _link[0].handler.recv("node1", m);
+        m.type = "NOINTEREST";
+        _link[0].handler.recv("node1", m);
+        assertFalse(_bridge[0].hasRemoteInterest("r"));
+    }
+
+
+    @Test
+    public void ownInterestIsIgnored() throws Exception {
+        _link[0].handler.recv("node1", new PubSubBridge.Message("INTEREST", List.of("r"), "node0", 1));
+        assertFalse(_bridge[0].hasRemoteInterest("r"));
+    }
+
+
+    @Test
+    public void messagesAfterRestartAreNotDropped() throws Exception {
+        TestServer.Client c = _srv[2].connect();
+        c.send("SUBSCRIBE,r");
+        assertTrue(TestServer.await(() -> _bridge[0].hasRemoteInterest("r"), 5000));
+        _srv[0].pubSub().putText("r", "before");
+        assertEquals("r,before", c.next(5000));
+
+        /* Node 0 restarts. Its sequence numbers start from the beginning again */
+        _bridge[0].close();
+        _bridge[0] = new PubSubBridge(_srv[0].conf, _srv[0].pubSub(), _link[0]);
+        c.send("UNSUBSCRIBE,r");
+        c.send("SUBSCRIBE,r");
+        assertTrue(TestServer.await(() -> _bridge[0].hasRemoteInterest("r"), 5000));
+
+        _srv[0].pubSub().putText("r", "after");
+        assertEquals("r,after", c.next(5000), "message was taken as a duplicate");
+        assertNull(c.next(500), "message was delivered more than once");
+    }
+
+
+    @Test
+    public void postsRacingWithCloseDoNotFail() throws Exception {
+        TestServer.Client c = _srv[2].connect();
+        c.send("SUBSCRIBE,r");
+        assertTrue(TestServer.await(() -> _bridge[0].hasRemoteInterest("r"), 5000));
+
+        /* Posts go on while the bridge is closed. Those that are too late are dropped */
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[] posters = new Thread[4];
+        for (int i=0; i<posters.length; i++) {
+            posters[i] = new Thread( () -> {
+                try {
+                    for (int j=0; j<20000; j++)
+                        _srv[0].pubSub().putText("r", "m");
+                }
+                catch (Throwable e) { errors.add(e); }
+            });
+            posters[i].start();
+        }
+        Thread.sleep(10);
+        _bridge[0].close();
+        for (Thread t : posters)
+            t.join();
+        assertEquals(List.of(), errors);
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Subscribe, unsubscribe, close and post from many threads at once, and check
+ * that rooms, clients and the order of messages are consistent afterwards.
+ */
+public class PubSubConcurrencyTest {
+
+    private TestServer _srv;
+    private ExecutorService _exec;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("pubsub.room.grace", "0");
+        p.setProperty("websocket.queue.size", "10000");
+        p.setProperty("websocket.inbox.size", "10000");
+        p.setProperty("websocket.fanout.shardsize", "4");
+        _srv = new TestServer(p);
+        _srv.pubSub().createRoom("test", false, false, false, true, String.class);
+        _exec = Executors.newFixedThreadPool(16);
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        _exec.shutdownNow();
+        _srv.close();
+    }
+
+
+    private List<TestServer.Client> connect(int n) throws Exception {
+        List<TestServer.Client> res = new ArrayList<TestServer.Client>();
+        for (int i=0; i<n; i++)
+            res.add(_srv.connect());
+        assertTrue(TestServer.await(() -> _srv.pubSub().nClients() == n, 5000));
+        return res;
+    }
+
+
+    /* Every client of every room is an open client and has the room in its joined set */
+    private void checkRooms() {
+        Set<WsNotifier.Client> open = new HashSet<WsNotifier.Client>(_srv.pubSub().clients());
+        for (WsNotifier.Client x : open)
+            for (PubSub.Room rm : ((PubSub.Client) x)._joined)
+                assertSame(rm, _srv.pubSub().getRoom(rm.name), "client joined a removed room");
+        for (PubSub.Room rm : _srv.pubSub().roomStats().stream()
+                 .map(s -> _srv.pubSub().getRoom(s.room)).filter(Objects::nonNull).toList())
+            for (PubSub.Client c : rm.clients()) {
+                assertTrue(open.contains(c), "closed client in room "+rm.name);
+                assertTrue(c._joined.contains(rm));
+            }
+    }
+
+
+
+    @Test
+    public void subscribeUnsubscribeCloseWhilePosting() throws Exception {
+        List<TestServer.Client> clients = connect(32);
+        AtomicBoolean done = new AtomicBoolean(false);
+        Future<?> poster = _exec.submit(() -> {
+            int i = 0;
+            while (!done.get())
+                _srv.pubSub().putText("test", "m"+(i++));
+        });
+
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (int i=0; i<clients.size(); i++) {
+            TestServer.Client c = clients.get(i);
+            boolean close = (i % 3 == 0);
+            tasks.add(_exec.submit(() -> {
+                for (int j=0; j<50; j++) {
+                    c.send("SUBSCRIBE,test");
+                    c.send("UNSUBSCRIBE,test");
+                }
+                if (close)
+                    c.close();
+                else
+                    c.send("SUBSCRIBE,test");
+                return null;
+            }));
+        }
+        for (Future<?> t : tasks)
+            t.get(20, TimeUnit.SECONDS);
+        done.set(true);
+        poster.get(5, TimeUnit.SECONDS);
+
+        int expected = 32 - 11;
+        PubSub.Room rm = _srv.pubSub().getRoom("test");
+        assertTrue(TestServer.await(() -> _srv.pubSub().nClients() == expected, 5000));
+        assertTrue(TestServer.await(() -> rm.nClients() == expected, 5000));
+        checkRooms();
+
+        assertEquals(expected, _srv.pubSub().deliverText("test", "final").delivered);
+        for (int i=0; i<clients.size(); i++)
+            if (i % 3 != 0) {
+                TestServer.Client c = clients.get(i);
+                assertTrue(TestServer.await(() -> c.text.contains("test,final"), 5000));
+            }
+    }
+
+
+
+    @Test
+    public void shardedFanOutKeepsOrderOfEachSender() throws Exception {
+        List<TestServer.Client> clients = connect(20);
+        for (TestServer.Client c : clients)
+            c.send("SUBSCRIBE,test");
+        PubSub.Room rm = _srv.pubSub().getRoom("test");
+        assertTrue(TestServer.await(() -> rm.nClients() == 20, 5000));
+
+        int nSenders = 4, nMsgs = 200;
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (int s=0; s<nSenders; s++) {
+            int sender = s;
+            tasks.add(_exec.submit(() -> {
+                for (int i=0; i<nMsgs; i++)
+                    assertEquals(20, _srv.pubSub().deliverText("test", sender+":"+i).delivered);
+                return null;
+            }));
+        }
+        for (Future<?> t : tasks)
+            t.get(20, TimeUnit.SECONDS);
+
+        for (TestServer.Client c : clients) {
+            int[] last = new int[nSenders];
+            Arrays.fill(last, -1);
+            for (int n=0; n<nSenders*nMsgs; n++) {
+                String m = c.next(5000);
+                assertNotNull(m, "missing messages");
+                String[] x = m.substring(5).split(":");
+                int sender = Integer.parseInt(x[0]), i = Integer.parseInt(x[1]);
+                assertEquals(last[sender]+1, i, "out of order from sender "+sender);
+                last[sender] = i;
+            }
+        }
+    }
+
+
+
+    @Test
+    public void inboxKeepsOrderOfClient() throws Exception {
+        List<TestServer.Client> clients = connect(2);
+        TestServer.Client sender = clients.get(0), receiver = clients.get(1);
+        sender.send("SUBSCRIBE,test");
+        receiver.send("SUBSCRIBE,test");
+        PubSub.Room rm = _srv.pubSub().getRoom("test");
+        assertTrue(TestServer.await(() -> rm.nClients() == 2, 5000));
+
+        for (int i=0; i<500; i++)
+            sender.send("PUT,test,"+i);
+        for (int i=0; i<500; i++)
+            assertEquals("test,"+i, receiver.next(5000));
+    }
+
+
+
+    @Test
+    public void subscribeWhileRoomsExpire() throws Exception {
+        List<TestServer.Client> clients = connect(16);
+        long end = System.currentTimeMillis() + 2500;
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        for (TestServer.Client c : clients)
+            tasks.add(_exec.submit(() -> {
+                Random rnd = new Random();
+                while (System.currentTimeMillis() < end) {
+                    String rid = "exp:"+rnd.nextInt(8);
+                    _srv.pubSub().createExpiringRoom(rid, String.class);
+                    c.send("SUBSCRIBE,"+rid);
+                    if (rnd.nextBoolean())
+                        c.send("UNSUBSCRIBE,"+rid);
+                }
+                return null;
+            }));
+        for (Future<?> t : tasks)
+            t.get(20, TimeUnit.SECONDS);
+
+        /* Let the inboxes drain and the expiry run once more */
+        Thread.sleep(1500);
+        checkRooms();
+    }
+
+
+
+    @Test
+    public void patternSubscriberKeepsRoom() throws Exception {
+        TestServer.Client c = connect(1).get(0);
+        _srv.pubSub().createExpiringRoom("exp:a", String.class);
+        c.send("SUBSCRIBE,exp:*");
+        
+        /* Expiry runs every second */
+        Thread.sleep(2500);
+        assertTrue(_srv.pubSub().hasRoom("exp:a"), "room was removed");
+        _srv.pubSub().putText("exp:a", "hello");
+        assertEquals("exp:a,hello", c.next(5000));
+
+        c.send("UNSUBSCRIBE,exp:*");
+        assertTrue(TestServer.await(() -> !_srv.pubSub().hasRoom("exp:a"), 5000));
+    }
+
+
+    @Test
+    public void patternDoesNotGetRoomsOfOtherUsers() throws Exception {
+        TestServer.Client c = connect(1).get(0);
+        _srv.pubSub().createUserRoom("auth:bob", "bob", null, true);
+        _srv.pubSub().createExpiringRoom("auth:open", String.class);
+        c.send("SUBSCRIBE,auth:*");
+        assertTrue(TestServer.await(() -> _srv.pubSub().hasLocalReceivers(_srv.pubSub().getRoom("auth:open")), 5000));
+
+        _srv.pubSub().putText("auth:bob", "secret");
+        _srv.pubSub().putText("auth:open", "hello");
+        assertEquals("auth:open,hello", c.next(5000));
+        assertFalse(_srv.pubSub().hasLocalReceivers(_srv.pubSub().getRoom("auth:bob")));
+    }
+}
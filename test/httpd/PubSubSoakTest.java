@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package no.polaric.core.httpd;
+import java.util.*;
+import java.lang.management.ManagementFactory;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Clients connect, subscribe to shared, own and pattern rooms, and disconnect, over 
+ * and over. Rooms, clients, subscriptions and resume tokens should be cleaned up. 
+ *
+ * The heap test is tagged 'soak' and is not part of the normal test run. Run it with 
+ * mvn test -Dgroups=soak -DexcludedGroups=. The number of cycles can be raised with -Dsoak.cycles=n. 
+ */
+public class PubSubSoakTest {
+
+    private static final int CLIENTS = 50;
+    private static final int WARMUP = 5;
+    private static final int CYCLES = Integer.getInteger("soak.cycles", 20);
+    private static final int SHORT_CYCLES = 3;
+    private static final long MAX_GROWTH = 8 * 1024 * 1024;
+
+    private TestServer _srv;
+    private int _nRooms;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("pubsub.room.grace", "0");
+        p.setProperty("pubsub.resume.grace", "0");
+        _srv = new TestServer(p);
+        _srv.pubSub().createRoom("shared", String.class);
+        _nRooms = _srv.pubSub().roomStats().size();
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception
+        { _srv.close(); }
+
+
+    /* Connect clients, let them subscribe and get a message, and close them */
+    private void cycle(int k) throws Exception {
+        PubSub.Room shared = _srv.pubSub().getRoom("shared");
+        List<TestServer.Client> clients = new ArrayList<TestServer.Client>();
+        for (int i=0; i<CLIENTS; i++) {
+            TestServer.Client c = _srv.connect();
+            if (i % 2 == 0)
+                c.send("RESUME");
+            if (i % 5 == 0)
+                c.send("SUBSCRIBE,churn:*");
+            String rid = "churn:"+k+":"+i;
+            _srv.pubSub().createExpiringRoom(rid, String.class);
+            c.send("SUBSCRIBE,"+rid);
+            c.send("SUBSCRIBE,shared");
+            clients.add(c);
+        }
+        assertTrue(TestServer.await(() -> shared.nClients() == CLIENTS, 5000));
+        _srv.pubSub().putText("shared", "cycle "+k);
+        for (TestServer.Client c : clients)
+            assertTrue(TestServer.await(() -> c.text.contains("shared,cycle "+k), 5000));
+        for (TestServer.Client c : clients)
+            c.close();
+        assertTrue(TestServer.await(() -> _srv.pubSub().nClients() == 0, 5000), "clients left");
+        assertEquals(0, shared.nClients(), "clients left in shared room");
+    }
+
+
+    /* Heap in use after garbage collection */
+    private static long usedHeap() throws InterruptedException {
+        for (int i=0; i<3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+
+    /* 
+     * Wait until the expiring rooms of the clients and the resume tokens are gone. 
+     * Expiry runs every second 
+     */
+    private void awaitExpiry() throws Exception {
+        assertTrue(TestServer.await(() -> _srv.pubSub().roomStats().size() == _nRooms, 5000), "rooms left");
+        assertTrue(TestServer.await(() -> _srv.pubSub().nResume() == 0, 5000), "resume tokens left");
+    }
+
+
+
+    @Test
+    public void stateIsCleanedUpUnderChurn() throws Exception {
+        for (int k=0; k<SHORT_CYCLES; k++)
+            cycle(k);
+        awaitExpiry();
+        assertEquals(0, _srv.pubSub().nClients());
+        assertEquals(0, _srv.pubSub().getRoom("shared").nClients());
+        assertEquals(0, _srv.pubSub().nPatternNodes(), "pattern subscriptions left");
+    }
+
+
+    @Test
+    @Tag("soak")
+    public void heapIsStableUnderChurn() throws Exception {
+        for (int k=0; k<WARMUP; k++)
+            cycle(k);
+        awaitExpiry();
+        long before = usedHeap();
+
+        for (int k=WARMUP; k<WARMUP+CYCLES; k++)
+            cycle(k);
+        awaitExpiry();
+        long after = usedHeap();
+
+        assertTrue(after - before < MAX_GROWTH, (CYCLES*CLIENTS)+" sessions, heap grew from "
+            + (before/1024)+" KB to "+(after/1024)+" KB");
+    }
+}
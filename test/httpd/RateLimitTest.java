@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Rate limits on SUBSCRIBE and PUT from clients.
+ */
+public class RateLimitTest {
+
+    @Test
+    public void refundGivesTokenBack() {
+        TokenBucket b = new TokenBucket(0.001, 2);
+        assertTrue(b.tryAcquire());
+        assertTrue(b.tryAcquire());
+        assertFalse(b.tryAcquire());
+        b.refund();
+        assertTrue(b.tryAcquire());
+        assertFalse(b.tryAcquire());
+    }
+
+
+    @Test
+    public void refundDoesNotExceedBurst() {
+        TokenBucket b = new TokenBucket(0.001, 1);
+        b.refund();
+        assertTrue(b.tryAcquire());
+        assertFalse(b.tryAcquire());
+    }
+
+
+    @Test
+    public void noLimitsByDefault() throws Exception {
+        try (TestServer srv = new TestServer()) {
+            srv.pubSub().createRoom("test", false, false, false, true, String.class);
+            assertNull(srv.pubSub().getRoom("test").putLimit);
+            TestServer.Client c = srv.connect();
+            for (int i=0; i<100; i++)
+                c.send("SUBSCRIBE,test");
+            for (int i=0; i<100; i++)
+                c.send("PUT,test,m"+i);
+            for (int i=0; i<100; i++)
+                assertEquals("test,m"+i, c.next(5000));
+            assertEquals(0, serverClient(srv).nRejected());
+        }
+    }
+
+
+    @Test
+    public void rejectedCommandsAreReported() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("pubsub.limit.subscribe.rate", "1");
+        p.setProperty("pubsub.limit.subscribe.burst", "2");
+        p.setProperty("pubsub.limit.put.rate", "1");
+        p.setProperty("pubsub.limit.put.burst", "10");
+        try (TestServer srv = new TestServer(p)) {
+            srv.pubSub().createRoom("test", false, false, false, true, String.class);
+            PubSub.Room rm = srv.pubSub().getRoom("test");
+            rm.putLimit = new TokenBucket(0.001, 1);
+
+            TestServer.Client c = srv.connect();
+            c.send("SUBSCRIBE,test");
+            c.send("SUBSCRIBE,test");
+            c.send("SUBSCRIBE,test");
+            assertEquals("REJECTED,SUBSCRIBE,test", c.next(5000));
+
+            /* The room allows only one post */
+            c.send("PUT,test,a");
+            assertEquals("test,a", c.next(5000));
+            c.send("PUT,test,b");
+            assertEquals("REJECTED,PUT,test", c.next(5000));
+            assertEquals(1, rm.stats.info("test", 1).rejected);
+        }
+    }
+
+
+    @Test
+    public void resumeIsLimited() throws Exception {
+        Properties p = new Properties();
+        p.setProperty("pubsub.limit.subscribe.rate", "1");
+        p.setProperty("pubsub.limit.subscribe.burst", "2");
+        try (TestServer srv = new TestServer(p)) {
+            TestServer.Client c = srv.connect();
+            c.send("RESUME");
+            c.send("RESUME");
+            c.send("RESUME");
+            assertTrue(c.next(5000).startsWith("RESUME,"));
+            assertTrue(c.next(5000).startsWith("RESUME,"));
+            assertEquals("REJECTED,RESUME", c.next(5000));
+        }
+    }
+
+
+    /* The server side of the only client */
+    private static WsNotifier.Client serverClient(TestServer srv) throws Exception {
+        assertTrue(TestServer.await(() -> srv.pubSub().nClients() == 1, 5000));
+        return srv.pubSub().clients().iterator().next();
+    }
+
+
+    /* Tight limit on SUBSCRIBE, so that most of them are rejected */
+    private static Properties tightLimit() {
+        Properties p = new Properties();
+        p.setProperty("pubsub.limit.subscribe.rate", "1");
+        p.setProperty("pubsub.limit.subscribe.burst", "1");
+        p.setProperty("websocket.queue.size", "16");
+        p.setProperty("websocket.inbox.size", "10000");
+        return p;
+    }
+
+
+    @Test
+    public void repeatedRejectionIsQueuedOnce() throws Exception {
+        try (TestServer srv = new TestServer(tightLimit())) {
+            TestServer.Client c = srv.connectNotReading();
+            WsNotifier.Client sc = serverClient(srv);
+            
+            /* Without coalescing, the replies would fill the socket buffers and the queue */
+            String room = "x".repeat(10000);
+            for (int i=0; i<4000; i++)
+                c.send("SUBSCRIBE,"+room);
+            assertTrue(TestServer.await(() -> sc.nRejected() >= 3900, 20000));
+            assertTrue(sc.queued() <= 1, "queued: "+sc.queued());
+            assertEquals(0, sc.nDropped());
+            assertTrue(sc.send(new WsFrame("test")), "client was disconnected");
+        }
+    }
+
+
+    @Test
+    public void clientFilledWithRejectionsIsDisconnected() throws Exception {
+        try (TestServer srv = new TestServer(tightLimit())) {
+            TestServer.Client c = srv.connectNotReading();
+            WsNotifier.Client sc = serverClient(srv);
+            
+            /* Each reply is different, and they fill the socket buffers and then the queue */
+            String room = "x".repeat(10000);
+            try {
+                for (int i=0; i<4000 && sc.nDropped() == 0; i++)
+                    c.send("SUBSCRIBE,"+i+room);
+            }
+            catch (CompletionException e) {
+                /* The server has closed the session */
+            }
+            assertTrue(TestServer.await(() -> sc.nDropped() > 0, 20000), "queued: "+sc.queued());
+            assertEquals(0, sc.queued());
+            assertFalse(sc.send(new WsFrame("test")));
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Replay buffer of rooms (Room.setReplay). New subscribers get the recent messages.
+ */
+public class ReplayTest {
+
+    private TestServer _srv;
+    private PubSub.Room _room;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        _srv = new TestServer();
+        _srv.pubSub().createRoom("test", String.class);
+        _room = _srv.pubSub().getRoom("test");
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception
+        { _srv.close(); }
+
+
+    /* Subscribe a new client to the test room and return the messages it gets at once */
+    private List<String> lateSubscriber() throws Exception {
+        TestServer.Client c = _srv.connect();
+        c.send("SUBSCRIBE,test");
+        List<String> res = new ArrayList<String>();
+        for (String m = c.next(1000); m != null; m = c.next(300))
+            res.add(m);
+        return res;
+    }
+
+
+
+    @Test
+    public void lateSubscriberGetsBufferedMessages() throws Exception {
+        _room.setReplay(10, 0);
+        _srv.pubSub().putText("test", "a");
+        _srv.pubSub().putText("test", "b");
+        assertEquals(List.of("test,a", "test,b"), lateSubscriber());
+    }
+
+
+    @Test
+    public void bufferIsLimitedByCount() throws Exception {
+        _room.setReplay(2, 0);
+        for (int i=1; i<=5; i++)
+            _srv.pubSub().putText("test", "m"+i);
+        assertEquals(List.of("test,m4", "test,m5"), lateSubscriber());
+    }
+
+
+    @Test
+    public void bufferIsLimitedByAge() throws Exception {
+        /* The new message must still be young when the client subscribes */
+        _room.setReplay(10, 2000);
+        _srv.pubSub().putText("test", "old");
+        Thread.sleep(2500);
+        _srv.pubSub().putText("test", "new");
+        assertEquals(List.of("test,new"), lateSubscriber());
+    }
+
+
+    @Test
+    public void noReplayWhenTurnedOff() throws Exception {
+        _room.setReplay(10, 0);
+        _srv.pubSub().putText("test", "a");
+        _room.setReplay(0, 0);
+        assertFalse(_room.hasReplay());
+        assertEquals(List.of(), lateSubscriber());
+    }
+}
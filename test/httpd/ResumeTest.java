@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Resume tokens (RESUME command), sequence numbers, ACK and replay of missed messages.
+ */
+public class ResumeTest {
+
+    private TestServer _srv;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        _srv = new TestServer();
+        _srv.pubSub().createRoom("test", String.class);
+        _srv.pubSub().getRoom("test").setReplay(3, 0);
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception
+        { _srv.close(); }
+
+
+    /* Send RESUME and return the token the server answers with */
+    private String resume(TestServer.Client c, String token) throws Exception {
+        c.send(token == null ? "RESUME" : "RESUME,"+token);
+        String m = c.next(5000);
+        assertNotNull(m);
+        assertTrue(m.startsWith("RESUME,"), m);
+        return m.substring(7);
+    }
+
+
+    /* Next text frame that ends with end, skipping others. null if none */
+    private String until(TestServer.Client c, String end) throws Exception {
+        for (String m = c.next(5000); m != null; m = c.next(5000))
+            if (m.endsWith(end))
+                return m;
+        return null;
+    }
+
+
+
+    /* The next n text frames */
+    private List<String> next(TestServer.Client c, int n) throws Exception {
+        List<String> res = new ArrayList<String>();
+        for (int i=0; i<n; i++) {
+            String m = c.next(5000);
+            assertNotNull(m, "got only "+res);
+            res.add(m);
+        }
+        return res;
+    }
+
+
+    /* Resume with a new token, subscribe to the test room and wait until subscribed */
+    private String subscribe(TestServer.Client c) throws Exception {
+        String t = resume(c, null);
+        c.send("SUBSCRIBE,test");
+        assertTrue(TestServer.await(() -> _srv.pubSub().getRoom("test").nClients() == 1, 5000));
+        return t;
+    }
+
+
+    /* Close a client and wait until the server has closed the session */
+    private void close(TestServer.Client c) throws Exception {
+        c.close();
+        assertTrue(TestServer.await(() -> _srv.pubSub().nClients() == 0, 5000));
+    }
+
+
+
+    @Test
+    public void messagesHaveSequenceNumbers() throws Exception {
+        TestServer.Client c = _srv.connect();
+        subscribe(c);
+        _srv.pubSub().putText("test", "a");
+        _srv.pubSub().putText("test", "b");
+        assertEquals(List.of("SEQ,1,test,a", "SEQ,2,test,b"), next(c, 2));
+    }
+
+
+    @Test
+    public void resumeReplaysMissedMessages() throws Exception {
+        TestServer.Client c1 = _srv.connect();
+        String t = subscribe(c1);
+        _srv.pubSub().putText("test", "m1");
+        _srv.pubSub().putText("test", "m2");
+        assertEquals(List.of("SEQ,1,test,m1", "SEQ,2,test,m2"), next(c1, 2));
+        
+        /* m2 is not acknowledged */
+        c1.send("ACK,test,1");
+        close(c1);
+        _srv.pubSub().putText("test", "m3");
+        
+        TestServer.Client c2 = _srv.connect();
+        assertEquals(t, resume(c2, t));
+        assertEquals(List.of("SEQ,2,test,m2", "SEQ,3,test,m3"), next(c2, 2));
+        assertNull(c2.next(300));
+        
+        /* New messages follow */
+        _srv.pubSub().putText("test", "m4");
+        assertEquals("SEQ,4,test,m4", c2.next(5000));
+    }
+
+
+    @Test
+    public void resyncWhenGapIsNotInReplayBuffer() throws Exception {
+        TestServer.Client c1 = _srv.connect();
+        String t = subscribe(c1);
+        _srv.pubSub().putText("test", "m1");
+        assertEquals("SEQ,1,test,m1", c1.next(5000));
+        c1.send("ACK,test,1");
+        close(c1);
+        
+        /* The buffer has the last three, m2 is lost */
+        for (int i=2; i<=5; i++)
+            _srv.pubSub().putText("test", "m"+i);
+        
+        TestServer.Client c2 = _srv.connect();
+        assertEquals(t, resume(c2, t));
+        assertEquals(List.of("RESYNC,test", "SEQ,3,test,m3", "SEQ,4,test,m4", "SEQ,5,test,m5"), next(c2, 4));
+        assertNull(c2.next(300));
+    }
+
+
+    @Test
+    public void newTokenReplacesOld() throws Exception {
+        TestServer.Client c1 = _srv.connect();
+        String t1 = resume(c1, null);
+        c1.send("SUBSCRIBE,test");
+        String t2 = resume(c1, null);
+        assertNotEquals(t1, t2);
+        c1.close();
+        assertTrue(TestServer.await(() -> _srv.pubSub().nClients() == 0, 5000));
+
+        /* The first token is gone */
+        TestServer.Client c2 = _srv.connect();
+        assertNotEquals(t1, resume(c2, t1));
+
+        /* The second has the subscription made before it was issued */
+        TestServer.Client c3 = _srv.connect();
+        assertEquals(t2, resume(c3, t2));
+        assertTrue(TestServer.await(() -> _srv.pubSub().getRoom("test").nClients() == 1, 5000));
+        _srv.pubSub().putText("test", "x");
+        assertNotNull(until(c3, "test,x"));
+    }
+
+
+    @Test
+    public void sameTokenIsKept() throws Exception {
+        TestServer.Client c = _srv.connect();
+        String t = resume(c, null);
+        assertEquals(t, resume(c, t));
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Boxes at the edges of the world: full width, crossing the 180th meridian and
+ * not normalized (as Leaflet gives them when the map is scrolled around).
+ */
+public class SpatialGridTest {
+
+    private static final double[] LONS = {-180, -179.9, -170, -90, 0, 90, 170, 179.9, 180};
+
+
+    /* Grids that register boxes in cells, and that keep wide boxes in a list */
+    private static List<SpatialGrid<String>> grids() 
+        { return List.of(new SpatialGrid<String>(10, 100000), new SpatialGrid<String>(10, 4)); }
+
+
+    private static boolean match(SpatialGrid<String> g, double lat, double lon) {
+        List<String> res = new ArrayList<String>();
+        g.match(lat, lon, res);
+        return res.contains("x");
+    }
+
+
+
+    @Test
+    public void fullWorld() {
+        for (SpatialGrid<String> g : grids()) {
+            g.put("x", new SpatialGrid.Box(-90, -180, 90, 180));
+            for (double lon : LONS)
+                for (double lat : new double[] {-90, -45, 0, 45, 90})
+                    assertTrue(match(g, lat, lon), "lat="+lat+", lon="+lon);
+        }
+    }
+
+
+    @Test
+    public void widerThanWorld() {
+        SpatialGrid.Box b = new SpatialGrid.Box(-10, -250, 10, 250);
+        assertEquals(-180, b.minLon);
+        assertEquals(180, b.maxLon);
+        for (SpatialGrid<String> g : grids()) {
+            g.put("x", b);
+            for (double lon : LONS)
+                assertTrue(match(g, 0, lon), "lon="+lon);
+            assertFalse(match(g, 20, 0));
+        }
+    }
+
+
+    @Test
+    public void notNormalized() {
+        /* Scrolled west, across the 180th meridian: 160..190 is 160..-170 */
+        SpatialGrid.Box b = new SpatialGrid.Box(0, -200, 10, -170);
+        assertEquals(160, b.minLon);
+        assertEquals(-170, b.maxLon);
+        for (SpatialGrid<String> g : grids()) {
+            g.put("x", b);
+            assertTrue(match(g, 5, 165));
+            assertTrue(match(g, 5, 180));
+            assertTrue(match(g, 5, -175));
+            assertFalse(match(g, 5, 0));
+            assertFalse(match(g, 5, -160));
+        }
+
+        /* Scrolled a whole turn east */
+        b = new SpatialGrid.Box(0, 365, 10, 370);
+        assertEquals(5, b.minLon);
+        assertEquals(10, b.maxLon);
+    }
+
+
+    @Test
+    public void crossing180() {
+        for (SpatialGrid<String> g : grids()) {
+            g.put("x", new SpatialGrid.Box(0, 170, 10, -170));
+            for (double lon : new double[] {170, 175, 180, -180, -175, -170})
+                assertTrue(match(g, 5, lon), "lon="+lon);
+            assertFalse(match(g, 5, 0));
+            assertFalse(match(g, 5, 169));
+        }
+    }
+
+
+    @Test
+    public void almostFullCrossing180() {
+        /* Crosses the 180th meridian, and covers all but 0.1 degree */
+        for (SpatialGrid<String> g : grids()) {
+            g.put("x", new SpatialGrid.Box(0, 170.2, 10, 170.1));
+            for (double lon : LONS)
+                if (lon != 170)
+                    assertTrue(match(g, 5, lon), "lon="+lon);
+            assertFalse(match(g, 5, 170.15));
+        }
+    }
+
+
+    @Test
+    public void endsAt180() {
+        for (SpatialGrid<String> g : grids()) {
+            g.put("x", new SpatialGrid.Box(0, 100, 10, 180));
+            assertTrue(match(g, 5, 180));
+            assertTrue(match(g, 5, 179.9));
+            assertFalse(match(g, 5, -179.9));
+        }
+    }
+
+
+    @Test
+    public void pointNotNormalized() {
+        for (SpatialGrid<String> g : grids()) {
+            g.put("x", new SpatialGrid.Box(0, -175, 10, -165));
+            assertTrue(match(g, 5, 190));
+            assertFalse(match(g, 5, 170));
+        }
+    }
+
+
+    @Test
+    public void replaceAndRemove() {
+        for (SpatialGrid<String> g : grids()) {
+            g.put("x", new SpatialGrid.Box(-90, -180, 90, 180));
+            g.put("x", new SpatialGrid.Box(0, 0, 10, 10));
+            assertTrue(match(g, 5, 5));
+            assertFalse(match(g, 5, 50));
+            g.remove("x");
+            assertFalse(match(g, 5, 5));
+            assertEquals(0, g.size());
+        }
+    }
+}
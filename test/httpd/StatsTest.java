@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import no.polaric.core.util.*;
+import java.util.*;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.file.*;
+import com.fasterxml.jackson.databind.*;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Traffic counters of rooms and clients, and the GET /pubsub/stats service. 
+ * Requests are authenticated with Arctic-Hmac. The users and their keys are set 
+ * up in files, as if they had logged in. 
+ */
+public class StatsTest {
+
+    private static final String ADMIN_KEY = "adminkey0123456789", USER_KEY = "userkey0123456789";
+    
+    private final HttpClient _http = HttpClient.newHttpClient();
+    private final ObjectMapper _mapper = new ObjectMapper()
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    private Path _dir;
+    private TestServer _srv;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        _dir = Files.createTempDirectory("polaric-stats");
+        Path users = Files.writeString(_dir.resolve("users"), 
+            "boss,null,false,true,Boss,,DEFAULT\n" +
+            "joe,null,false,false,Joe,,DEFAULT\n");
+        Path logins = Files.writeString(_dir.resolve("logins"), 
+            "boss:"+ADMIN_KEY+"\n" + "joe:"+USER_KEY+"\n");
+        Properties p = new Properties();
+        p.setProperty("httpserver.userfile", users.toString());
+        p.setProperty("httpserver.loginkeyfile", logins.toString());
+        _srv = new TestServer(p);
+        _srv.pubSub().createRoom("test", String.class);
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception
+        { _srv.close(); }
+
+
+    /* GET /pubsub/stats. If userid is not null, authenticate as that user */
+    private HttpResponse<String> getStats(String userid, String key) throws Exception {
+        HttpRequest.Builder b = HttpRequest.newBuilder()
+            .uri(URI.create("http://localhost:"+_srv.port()+"/pubsub/stats"));
+        if (userid != null) {
+            String nonce = SecUtils.b64encode(SecUtils.getRandom(8));
+            b.header("Authorization", "Arctic-Hmac "+userid+";"+nonce+";"+SecUtils.hmacB64(nonce, key, 44));
+        }
+        return _http.send(b.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+
+    private static TrafficStats.Info room(TrafficStats.Report r, String name) {
+        for (TrafficStats.Info x : r.rooms)
+            if (name.equals(x.room))
+                return x;
+        fail("room not in report: "+name);
+        return null;
+    }
+
+
+
+    @Test
+    public void countersAfterKnownTraffic() throws Exception {
+        TestServer.Client c = _srv.connect();
+        c.send("SUBSCRIBE,test");
+        assertTrue(TestServer.await(() -> _srv.pubSub().getRoom("test").nClients() == 1, 5000));
+        for (int i=1; i<=3; i++) {
+            _srv.pubSub().putText("test", "m"+i);
+            assertEquals("test,m"+i, c.next(5000));
+        }
+        
+        HttpResponse<String> res = getStats("boss", ADMIN_KEY);
+        assertEquals(200, res.statusCode());
+        TrafficStats.Report r = _mapper.readValue(res.body(), TrafficStats.Report.class);
+        
+        TrafficStats.Info x = room(r, "test");
+        assertEquals(1, x.subscribers);
+        assertEquals(3, x.messages);
+        assertEquals(3, x.delivered);
+        assertEquals(0, x.dropped);
+        assertEquals(3 * "test,m1".length(), x.bytesOut);
+        assertEquals(3, Arrays.stream(x.latency).sum());
+        
+        /* Nothing was posted to the other rooms */
+        assertEquals(0, room(r, "notify:SYSTEM").messages);
+        
+        assertEquals(1, r.clients.size());
+        TrafficStats.ClientInfo ci = r.clients.get(0);
+        assertEquals(1, ci.nIn);
+        assertEquals(3, ci.nOut);
+        assertEquals(0, ci.dropped);
+        assertEquals(0, ci.queued);
+    }
+
+
+    @Test
+    public void nonAdminIsRefused() throws Exception {
+        HttpResponse<String> res = getStats("joe", USER_KEY);
+        assertEquals(403, res.statusCode());
+        assertFalse(res.body().contains("\"rooms\""));
+        
+        res = getStats(null, null);
+        assertEquals(401, res.statusCode());
+        assertFalse(res.body().contains("\"rooms\""));
+        
+        /* Wrong key */
+        res = getStats("boss", USER_KEY);
+        assertEquals(401, res.statusCode());
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+/**
+ * Negotiation of the binary subprotocol in the websocket handshake.
+ */
+public class SubprotocolTest {
+
+    public static class Pos {
+        public String id;
+        public int n;
+        public Pos() {}
+        public Pos(String i, int x) { id=i; n=x; }
+    }
+
+
+    private TestServer _srv;
+
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        _srv = new TestServer();
+        _srv.pubSub().createRoom("test", String.class);
+    }
+
+
+    @AfterEach
+    public void tearDown() throws Exception
+        { _srv.close(); }
+
+
+    private WsNotifier.Client serverClient() throws Exception {
+        assertTrue(TestServer.await(() -> _srv.pubSub().nClients() == 1, 5000));
+        return _srv.pubSub().clients().iterator().next();
+    }
+
+
+
+    @Test
+    public void binaryProtocolIsAccepted() throws Exception {
+        TestServer.Client c = _srv.connect(WsNotifier.BIN_PROTOCOL);
+        assertEquals(WsNotifier.BIN_PROTOCOL, c.ws.getSubprotocol());
+        assertTrue(serverClient().isBinary());
+
+        /* A binary client is told the id of the room when it subscribes */
+        c.send("SUBSCRIBE,test");
+        ByteBuffer b = c.binary.poll(5, java.util.concurrent.TimeUnit.SECONDS);
+        assertNotNull(b);
+        assertEquals(WsFrame.BIN_ROOM, b.get());
+        assertEquals(_srv.pubSub().getRoom("test").id, WsFrame.getVarint(b));
+        assertEquals("test", StandardCharsets.UTF_8.decode(b).toString());
+    }
+
+
+    @Test
+    public void binaryProtocolIsPreferred() throws Exception {
+        TestServer.Client c = _srv.connect("other", WsNotifier.BIN_PROTOCOL);
+        assertEquals(WsNotifier.BIN_PROTOCOL, c.ws.getSubprotocol());
+        assertTrue(serverClient().isBinary());
+    }
+
+
+    @Test
+    public void otherProtocolIsNotAccepted() throws Exception {
+        TestServer.Client c = _srv.connect("other");
+        assertEquals("", c.ws.getSubprotocol());
+        assertFalse(serverClient().isBinary());
+    }
+
+
+    @Test
+    public void noProtocol() throws Exception {
+        TestServer.Client c = _srv.connect();
+        assertEquals("", c.ws.getSubprotocol());
+        assertFalse(serverClient().isBinary());
+    }
+
+
+    @Test
+    public void objectIsEncodedWhenPosted() throws Exception {
+        _srv.pubSub().createRoom("pos", Pos.class);
+        TestServer.Client b = _srv.connect(WsNotifier.BIN_PROTOCOL);
+        TestServer.Client t = _srv.connect();
+        b.send("SUBSCRIBE,pos");
+        t.send("SUBSCRIBE,pos");
+        assertTrue(TestServer.await(() -> _srv.pubSub().getRoom("pos").nClients() == 2, 5000));
+        ByteBuffer info = b.binary.poll(5, java.util.concurrent.TimeUnit.SECONDS);
+        assertEquals(WsFrame.BIN_ROOM, info.get());
+        
+        /* A change after the post does not reach the clients, binary or text */
+        Pos p = new Pos("LA7ECA", 1);
+        _srv.pubSub().put("pos", p);
+        p.n = 2;
+        
+        ByteBuffer m = b.binary.poll(5, java.util.concurrent.TimeUnit.SECONDS);
+        assertNotNull(m);
+        assertEquals(WsFrame.BIN_MSG, m.get());
+        assertEquals(_srv.pubSub().getRoom("pos").id, WsFrame.getVarint(m));
+        Pos got = (Pos) ServerBase.deserializeCbor(m.array(), m.position(), m.remaining(), Pos.class);
+        assertEquals(1, got.n);
+        assertEquals("pos,{\"id\":\"LA7ECA\",\"n\":1}", t.next(5000));
+    }
+}
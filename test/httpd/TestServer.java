@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package no.polaric.core.httpd;
+import no.polaric.core.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.net.URI;
+import java.net.http.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+
+
+
+/**
+ * Web server with the pubsub service on a free port, for tests. Clients are
+ * java.net.http websockets that put the frames they get in a queue.
+ */
+public class TestServer implements AutoCloseable {
+
+    /** Server configuration with properties set by the test */
+    public static class Config extends ConfigBase {
+        private WebServer _ws;
+
+        public Config(Properties p)
+            { setConfig(p); }
+
+        public ServerConfig.Web getWebserver()
+            { return _ws; }
+
+        public void addShutdownHandler(SimpleCb cb) {}
+    }
+
+
+
+    /** Websocket test client. Text frames are put in text, binary frames in binary */
+    public static class Client implements WebSocket.Listener {
+        public final BlockingQueue<String> text = new LinkedBlockingQueue<String>();
+        public final BlockingQueue<ByteBuffer> binary = new LinkedBlockingQueue<ByteBuffer>();
+        public final CompletableFuture<Integer> closed = new CompletableFuture<Integer>();
+        public WebSocket ws;
+        private StringBuilder _part = new StringBuilder();
+        private boolean _read = true;
+
+        /* A client that does not read leaves the frames in the socket buffers */
+        @Override public void onOpen(WebSocket w) {
+            if (_read)
+                w.request(1);
+        }
+
+        @Override public CompletionStage<?> onText(WebSocket w, CharSequence data, boolean last) {
+            _part.append(data);
+            if (last) {
+                text.add(_part.toString());
+                _part.setLength(0);
+            }
+            w.request(1);
+            return null;
+        }
+
+        @Override public CompletionStage<?> onBinary(WebSocket w, ByteBuffer data, boolean last) {
+            ByteBuffer b = ByteBuffer.allocate(data.remaining());
+            b.put(data).flip();
+            binary.add(b);
+            w.request(1);
+            return null;
+        }
+
+        @Override public CompletionStage<?> onClose(WebSocket w, int status, String reason) {
+            closed.complete(status);
+            return null;
+        }
+
+        @Override public void onError(WebSocket w, Throwable e)
+            { closed.completeExceptionally(e); }
+
+        public void send(String txt)
+            { ws.sendText(txt, true).join(); }
+
+        /** Next text frame, or null if none arrives within the time limit */
+        public String next(long ms) throws InterruptedException
+            { return text.poll(ms, TimeUnit.MILLISECONDS); }
+
+        /** Start reading, if the client was connected with connectNotReading */
+        public void read() {
+            _read = true;
+            ws.request(1);
+        }
+
+        public void close()
+            { ws.sendClose(WebSocket.NORMAL_CLOSURE, "").join(); }
+    }
+
+
+
+    public final Config conf;
+    public final WebServer server;
+    private final Path _dir;
+    private final HttpClient _http = HttpClient.newHttpClient();
+
+
+    public TestServer() throws Exception
+        { this(new Properties()); }
+
+
+    /** Start a server with the given properties. Auth and log files are put in a temp directory */
+    public TestServer(Properties p) throws Exception {
+        _dir = Files.createTempDirectory("polaric-test");
+        for (String f : new String[] {"users", "groups", "passwd", "peers", "logins"})
+            Files.createFile(_dir.resolve(f));
+        p.putIfAbsent("httpserver.userfile",     _dir.resolve("users").toString());
+        p.putIfAbsent("httpserver.groupfile",    _dir.resolve("groups").toString());
+        p.putIfAbsent("httpserver.passwdfile",   _dir.resolve("passwd").toString());
+        p.putIfAbsent("httpserver.keyfile",      _dir.resolve("peers").toString());
+        p.putIfAbsent("httpserver.loginkeyfile", _dir.resolve("logins").toString());
+        p.putIfAbsent("app.log.level", "3");
+        p.putIfAbsent("auth.log.level", "4");
+        conf = new Config(p);
+        
+        /* Log files (e.g. auth.log) go in the temp directory too */
+        System.setProperty("logdir", _dir.toString());
+        server = new WebServer(conf, 0, "/notify", null, null) {};
+        conf._ws = server;
+        server.start();
+    }
+
+
+    public PubSub pubSub()
+        { return server.pubSub(); }
+
+
+    public int port()
+        { return server.app().port(); }
+
+
+    /** Open a websocket to the pubsub service. subprotocols may be empty */
+    public Client connect(String... subprotocols) throws Exception
+        { return connectQuery(null, subprotocols); }
+
+
+    /** Open a websocket to the pubsub service with a query string (e.g. _MOBILE_). */
+    public Client connectQuery(String query, String... subprotocols) throws Exception
+        { return connect(new Client(), query, subprotocols); }
+
+
+    /** Open a websocket to the pubsub service with a client that never reads what it gets */
+    public Client connectNotReading() throws Exception {
+        Client c = new Client();
+        c._read = false;
+        return connect(c, null);
+    }
+
+
+    private Client connect(Client c, String query, String... subprotocols) throws Exception {
+        WebSocket.Builder b = _http.newWebSocketBuilder();
+        if (subprotocols.length > 0)
+            b.subprotocols(subprotocols[0], Arrays.copyOfRange(subprotocols, 1, subprotocols.length));
+        String uri = "ws://localhost:"+port()+"/notify" + (query == null ? "" : "?"+query);
+        c.ws = b.buildAsync(URI.create(uri), c).get(5, TimeUnit.SECONDS);
+        return c;
+    }
+
+
+    /** Wait until cond is true or the time limit is reached. Return cond */
+    public static boolean await(java.util.function.BooleanSupplier cond, long ms) throws InterruptedException {
+        long end = System.currentTimeMillis() + ms;
+        while (!cond.getAsBoolean()) {
+            if (System.currentTimeMillis() > end)
+                return false;
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+
+    @Override public void close() throws Exception {
+        server.stop();
+        try (var files = Files.list(_dir)) {
+            for (Path f : files.toList())
+                Files.deleteIfExists(f);
+        }
+        Files.deleteIfExists(_dir);
+    }
+}
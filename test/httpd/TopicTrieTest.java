@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2025 by LA7ECA, Øyvind Hanssen (ohanssen@acm.org)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package no.polaric.core.httpd;
+import java.util.*;
+import org.junit.jupiter.api.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+
+
+public class TopicTrieTest {
+
+    private final TopicTrie<String> _t = new TopicTrie<String>();
+
+
+    private Set<String> match(String topic) {
+        Set<String> res = new HashSet<String>();
+        _t.match(topic, res);
+        return res;
+    }
+
+
+
+    @Test
+    public void levels() {
+        assertEquals(List.of("notify", "SYSTEM"), TopicTrie.levels("notify:SYSTEM"));
+        assertEquals(List.of("tracker", "LA7ECA", "pos"), TopicTrie.levels("tracker/LA7ECA/pos"));
+        assertEquals(List.of("a", "b", "c"), TopicTrie.levels("a:b/c"));
+        assertEquals(List.of("room"), TopicTrie.levels("room"));
+        assertEquals(List.of("a", ""), TopicTrie.levels("a:"));
+        assertEquals(List.of(""), TopicTrie.levels(""));
+    }
+
+
+    @Test
+    public void isPattern() {
+        assertTrue(TopicTrie.isPattern("notify:*"));
+        assertTrue(TopicTrie.isPattern("tracker/+/pos"));
+        assertTrue(TopicTrie.isPattern("*"));
+        assertFalse(TopicTrie.isPattern("notify:SYSTEM"));
+        
+        /* Only whole levels are wildcards */
+        assertFalse(TopicTrie.isPattern("notify:SYS*"));
+        assertFalse(TopicTrie.isPattern("a+b"));
+    }
+
+
+    @Test
+    public void exactTopic() {
+        _t.add("notify:SYSTEM", "a");
+        assertEquals(Set.of("a"), match("notify:SYSTEM"));
+        assertEquals(Set.of(), match("notify:ADMIN"));
+        assertEquals(Set.of(), match("notify"));
+        assertEquals(Set.of(), match("notify:SYSTEM:x"));
+    }
+
+
+    @Test
+    public void restMatchesOneOrMoreLevels() {
+        _t.add("notify:*", "a");
+        assertEquals(Set.of("a"), match("notify:SYSTEM"));
+        assertEquals(Set.of("a"), match("notify:x/y/z"));
+        assertEquals(Set.of(), match("notify"));
+        assertEquals(Set.of(), match("other:SYSTEM"));
+    }
+
+
+    @Test
+    public void anyMatchesOneLevel() {
+        _t.add("tracker/+/pos", "a");
+        assertEquals(Set.of("a"), match("tracker/LA7ECA/pos"));
+        assertEquals(Set.of("a"), match("tracker:LA7ECA:pos"));
+        assertEquals(Set.of(), match("tracker/pos"));
+        assertEquals(Set.of(), match("tracker/a/b/pos"));
+        assertEquals(Set.of(), match("tracker/LA7ECA/status"));
+    }
+
+
+    @Test
+    public void overlappingPatterns() {
+        _t.add("tracker/*", "a");
+        _t.add("tracker/+/pos", "b");
+        _t.add("tracker/LA7ECA/pos", "c");
+        _t.add("+/+/+", "d");
+        assertEquals(Set.of("a", "b", "c", "d"), match("tracker/LA7ECA/pos"));
+        assertEquals(Set.of("a", "b", "d"), match("tracker/LA3FH/pos"));
+        assertEquals(Set.of("a"), match("tracker/LA3FH"));
+
+        /* A subscriber that matches twice is only added once to a set */
+        _t.add("tracker/LA7ECA/*", "a");
+        List<String> res = new ArrayList<String>();
+        _t.match("tracker/LA7ECA/pos", res);
+        assertEquals(Set.of("a", "b", "c", "d"), new HashSet<String>(res));
+    }
+
+
+    @Test
+    public void addAndRemove() {
+        assertTrue(_t.isEmpty());
+        assertTrue(_t.add("a:*", "x"));
+        assertFalse(_t.add("a:*", "x"));
+        assertTrue(_t.add("a:*", "y"));
+        assertEquals(2, _t.size());
+
+        assertTrue(_t.remove("a:*", "x"));
+        assertFalse(_t.remove("a:*", "x"));
+        assertFalse(_t.remove("b:*", "y"));
+        assertFalse(_t.remove("a:b:*", "y"));
+        assertEquals(1, _t.size());
+        assertEquals(Set.of("y"), match("a:b"));
+
+        assertTrue(_t.remove("a:*", "y"));
+        assertTrue(_t.isEmpty());
+        assertEquals(Set.of(), match("a:b"));
+    }
+
+
+    @Test
+    public void emptyNodesArePruned() {
+        _t.add("a:b:c", "x");
+        _t.add("a:b:*", "y");
+        _t.add("a:+", "z");
+        assertEquals(5, _t.nNodes());
+
+        /* Nodes on the path of other subscriptions are kept */
+        _t.remove("a:b:c", "x");
+        assertEquals(4, _t.nNodes());
+        assertEquals(Set.of("y"), match("a:b:c"));
+
+        _t.remove("a:b:*", "y");
+        assertEquals(2, _t.nNodes());
+        _t.remove("a:+", "z");
+        assertEquals(0, _t.nNodes());
+
+        /* The trie can be used again after it was emptied */
+        _t.add("a:b:c", "x");
+        assertEquals(Set.of("x"), match("a:b:c"));
+    }
+
+
+    @Test
+    public void interiorNodeWithSubscribersIsKept() {
+        _t.add("a:b", "x");
+        _t.add("a:b:c", "y");
+        _t.remove("a:b:c", "y");
+        assertEquals(2, _t.nNodes());
+        assertEquals(Set.of("x"), match("a:b"));
+    }
+}